@@ -19,11 +19,17 @@ package net.dries007.cmd;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
+import net.dries007.cmd.util.http.Http;
+import net.dries007.cmd.util.zip.ZipWriter;
 import org.apache.commons.io.FilenameUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
 
 /**
  * @author Dries007
@@ -33,6 +39,8 @@ public class Arguments
 {
     public final Client client = new Client();
     public final Server server = new Server();
+    public final Apply apply = new Apply();
+    public final Batch batch = new Batch();
 
     @Parameter(names = {"--help", "-h", "-?"}, description = "Display this text.", help = true)
     public boolean help = false;
@@ -49,8 +57,38 @@ public class Arguments
     @Parameter(names = {"-w", "--override"}, description = "If output is folder, don't check to see if folders specified in the pack are empty. If output is a zip, override if it exists.")
     public boolean override = false;
 
-    @Parameter(names = {"-j", "--threads"}, description = "Number of parallel downloaders to use.")
-    public int threads = Runtime.getRuntime().availableProcessors();
+    @Parameter(names = {"-u", "--update"}, description = "Update the previous build in the output: only download mods that changed, sync the overrides and remove whatever was dropped from the pack. In a folder, anything that was changed by hand since is noticed. A zip is rewritten, but everything unchanged is copied over as-is. Without a previous build, this is a normal build.")
+    public boolean update = false;
+
+    @Parameter(names = {"--delta-from"}, description = "Previous build (folder or zip) to make a delta against. The output zip only contains what changed since, and a list of what to remove. Use the apply command to install it. (Only useful when output is zip)")
+    public File deltaFrom = null;
+
+    @Parameter(names = {"--parallel-packs"}, description = "How many packs are built at the same time. (Only useful with batch)")
+    public int parallelPacks = 4;
+
+    @Parameter(names = {"-j", "--threads"}, description = "Maximum number of downloads in flight.")
+    public int threads = 64;
+
+    @Parameter(names = {"--resolve-threads"}, description = "Maximum number of mods being resolved (metadata, redirects) at once. Separate from the downloads.")
+    public int resolveThreads = 32;
+
+    @Parameter(names = {"--host-connections"}, description = "Maximum number of parallel connections to a single host. The actual number adapts to how well the host keeps up.")
+    public int hostConnections = 8;
+
+    @Parameter(names = {"--retries"}, description = "How many times to retry a failed download. Mods that still fail get one more try after all other downloads are done.")
+    public int retries = 3;
+
+    @Parameter(names = {"--retry-delay"}, description = "Delay before the first retry in ms. Doubles with every retry, with some random jitter.")
+    public int retryDelay = 1000;
+
+    @Parameter(names = {"--hedge"}, description = "Start a second copy of downloads that are much slower than the rest, and use whichever finishes first.")
+    public boolean hedge = false;
+
+    @Parameter(names = {"--segment-size"}, description = "Files of at least this many MB are downloaded in parallel segments, if the server allows it. 0 to disable.")
+    public long segmentSize = 16;
+
+    @Parameter(names = {"--segments"}, description = "Number of parallel segments for large files.")
+    public int segments = 4;
 
     @Parameter(names = {"-q", "--quiet"}, description = "Quiet. Don't output status information, make no log.")
     public boolean quiet = false;
@@ -61,12 +99,21 @@ public class Arguments
     @Parameter(names = {"--no-forge"}, description = "Skip forge download (and install on servers).")
     public boolean noForge = false;
 
-    @Parameter(names = {"--keep-tmp"}, description = "Keep the tmp folder after the program has exited.")
+    @Parameter(names = {"--keep-tmp"}, description = "Keep the tmp folder after the program has exited. Also keeps partial downloads, so the next run can resume them.")
     public boolean keepTmp = false;
 
     @Parameter(names = {"--root-zip"}, description = "Put the pack in the root of the zip. (Only useful when output is zip)")
     public boolean rootZip = false;
 
+    @Parameter(names = {"--zip-level"}, description = "Deflate level for the output zip, 0 (store only) - 9 (smallest). (Only useful when output is zip)")
+    public int zipLevel = 6;
+
+    @Parameter(names = {"--zip-store"}, description = "Extensions of files that are already compressed, and are stored in the output zip as-is. (Only useful when output is zip)")
+    public List<String> zipStore = new ArrayList<>(ZipWriter.DEFAULT_STORED_EXTENSIONS);
+
+    @Parameter(names = {"--reproducible"}, description = "Make the same output for the same input: the zip is byte for byte the same, with entries sorted by name and fixed timestamps, and the generated files don't contain the date.")
+    public boolean reproducible = false;
+
     @Parameter(names = {"--name"}, description = "Override the name. (Only useful when MultiMC or zipping without --root-zip)")
     public String name;
 
@@ -76,7 +123,36 @@ public class Arguments
     @Parameter(names = {"-l", "--log"}, description = "Log to file and to stdout.")
     public File log = null;
 
+    @Parameter(names = {"--cache"}, description = "Keep downloaded mods in this folder and reuse them across runs. Can be shared between packs.")
+    public File cache = null;
+
+    @Parameter(names = {"--cache-size"}, description = "Maximum size of the mod cache in MB. Least recently used mods are removed first.")
+    public long cacheSize = 4096;
+
+    @Parameter(names = {"--url-ttl"}, description = "How long resolved URLs and project names are kept in the cache, in hours. (Only useful with --cache)")
+    public int urlTtl = 72;
+
+    @Parameter(names = {"--url-negative-ttl"}, description = "How long 'file no longer available' results are kept in the cache, in hours. (Only useful with --cache)")
+    public int urlNegativeTtl = 6;
+
+    @Parameter(names = {"--connect-timeout"}, description = "Connect timeout for all HTTP connections, in seconds.")
+    public int connectTimeout = 15;
+
+    @Parameter(names = {"--read-timeout"}, description = "Read timeout for all HTTP connections, in seconds.")
+    public int readTimeout = 60;
+
+    @Parameter(names = {"--deadline"}, description = "Abort everything if the whole run takes longer than this, in seconds. In a batch, this is per pack. 0 means no limit.")
+    public int deadline = 0;
+
+    @Parameter(names = {"--write-lock"}, description = "After a successful build, write the URL, file name, size and SHA-1 of every mod to this lockfile.")
+    public File writeLock = null;
+
+    @Parameter(names = {"--use-lock"}, description = "Use the URLs from this lockfile instead of resolving the mods again, and check every mod against its locked SHA-1. Mods that aren't in the lock are resolved as usual.")
+    public File useLock = null;
+
     public boolean isClient;
+    public boolean isApply;
+    public boolean isBatch;
     public boolean zipOutput;
     public boolean isInputURL;
     private boolean validated;
@@ -84,14 +160,90 @@ public class Arguments
     /**
      * Validate and set flags isClient, zipOutput, ...
      *
-     * @param command 'client' or 'server', normally supplied from jCommander's getParsedCommand().
+     * @param command 'client', 'server', 'apply' or 'batch', normally supplied from jCommander's getParsedCommand().
      */
     public void validate(String command)
     {
         if (validated) throw new IllegalStateException("Already validated.");
         if (command == null) throw new ParameterException("You must used a command.");
 
-        if (delete) override = true;
+        if (command.equals("apply"))
+        {
+            validateApply();
+            return;
+        }
+
+        if (update && delete) throw new ParameterException("--update already removes what was dropped from the pack, it can't be combined with --delete.");
+        if (delete || update) override = true;
+
+        if (connectTimeout < 1 || readTimeout < 1)
+        {
+            throw new ParameterException("Timeouts must be at least 1 second.");
+        }
+        if (zipLevel < 0 || zipLevel > 9)
+        {
+            throw new ParameterException("Zip level must be between 0 and 9.");
+        }
+        for (ListIterator<String> i = zipStore.listIterator(); i.hasNext(); )
+        {
+            i.set(i.next().replaceFirst("^\\.", "").toLowerCase());
+        }
+        if (deadline < 0)
+        {
+            throw new ParameterException("Deadline can't be negative.");
+        }
+        // Before any connection is made, see Http.
+        Http.configure(connectTimeout * 1000, readTimeout * 1000, hostConnections);
+
+        output = output.getAbsoluteFile();
+        tmp = tmp.getAbsoluteFile();
+
+        if (cache != null)
+        {
+            cache = cache.getAbsoluteFile();
+            //noinspection ResultOfMethodCallIgnored
+            cache.mkdirs();
+            if (!cache.isDirectory()) throw new ParameterException("Could not create cache dir.");
+            if (cacheSize < 1) throw new ParameterException("The cache size must be at least 1 MB.");
+            if (urlTtl < 0 || urlNegativeTtl < 0) throw new ParameterException("The URL cache times can't be negative.");
+        }
+
+        if (useLock != null)
+        {
+            useLock = useLock.getAbsoluteFile();
+            if (!useLock.isFile()) throw new ParameterException("The lockfile to use does not exist.");
+        }
+        if (writeLock != null)
+        {
+            writeLock = writeLock.getAbsoluteFile();
+        }
+
+        if (threads < 1)
+        {
+            throw new ParameterException("You can't have less than 1 download thread.");
+        }
+        if (resolveThreads < 1)
+        {
+            throw new ParameterException("You can't have less than 1 resolve thread.");
+        }
+        if (retries < 0 || retryDelay < 0)
+        {
+            throw new ParameterException("Retries and retry delay can't be negative.");
+        }
+        if (segmentSize < 0 || segments < 2)
+        {
+            throw new ParameterException("The segment size can't be negative, and you need at least 2 segments.");
+        }
+        if (hostConnections < 1)
+        {
+            throw new ParameterException("You can't have less than 1 connection per host.");
+        }
+
+        if (command.equals("batch"))
+        {
+            validateBatch();
+            return;
+        }
 
         if (magic) // try and see if the input format is <projectID>:[<fileID>|release|beta|-1]
         {
@@ -115,14 +267,6 @@ public class Arguments
             input = new File(input).getAbsolutePath();
         }
 
-        output = output.getAbsoluteFile();
-        tmp = tmp.getAbsoluteFile();
-
-        if (threads < 1)
-        {
-            throw new ParameterException("You can't have less than 1 download thread.");
-        }
-
         // Check output
         if (output.exists())
         {
@@ -175,6 +319,15 @@ public class Arguments
             }
         }
 
+        if (deltaFrom != null)
+        {
+            deltaFrom = deltaFrom.getAbsoluteFile();
+            if (!zipOutput) throw new ParameterException("A delta can only be made as a zip.");
+            if (update) throw new ParameterException("--delta-from can't be combined with --update.");
+            if (!deltaFrom.exists()) throw new ParameterException("The build to make a delta against does not exist.");
+            if (deltaFrom.equals(output)) throw new ParameterException("The delta can't replace the build it's made against.");
+        }
+
         // Command specific stuff
         isClient = command.equals("client");
         if (isClient)
@@ -189,6 +342,43 @@ public class Arguments
         this.validated = true;
     }
 
+    /**
+     * Applying a delta only needs a local delta zip and the folder it goes in. None of the other options apply.
+     */
+    private void validateApply()
+    {
+        isApply = true;
+        try
+        {
+            new URL(input);
+            throw new ParameterException("The delta to apply must be a local file.");
+        }
+        catch (MalformedURLException e)
+        {
+            input = new File(input).getAbsolutePath();
+        }
+        if (!new File(input).isFile()) throw new ParameterException("The delta to apply does not exist.");
+        output = output.getAbsoluteFile();
+        if (!output.isDirectory()) throw new ParameterException("The output must be the folder of the build the delta was made against.");
+        this.validated = true;
+    }
+
+    /**
+     * The input is the list of packs, the output the folder their outputs are relative to. The options that are shared (downloads, cache, ...) are checked already.
+     */
+    private void validateBatch()
+    {
+        isBatch = true;
+        input = new File(input).getAbsolutePath();
+        if (!new File(input).isFile()) throw new ParameterException("The batch list does not exist.");
+        //noinspection ResultOfMethodCallIgnored
+        output.mkdirs();
+        if (!output.isDirectory()) throw new ParameterException("Could not create the batch output dir.");
+        if (parallelPacks < 1) throw new ParameterException("You can't build less than 1 pack at a time.");
+        if (useLock != null || writeLock != null || name != null) throw new ParameterException("--use-lock, --write-lock and --name are different for every pack, put them in the batch list.");
+        this.validated = true;
+    }
+
     public boolean isValidated()
     {
         return validated;
@@ -211,4 +401,16 @@ public class Arguments
 
         private Server() {}
     }
+
+    @Parameters(commandNames = "batch", commandDescription = "Build every pack in a list (input), one per line: the options for that pack (at least -i, -o and client or server with their options), on top of the options given here. Outputs and lockfiles are relative to the output folder, and every pack logs to its output + '.log' unless it has its own --log. Downloads, caches and connection limits are shared and come from the options given here; a mod that's in several packs is only downloaded once.")
+    public static class Batch
+    {
+        private Batch() {}
+    }
+
+    @Parameters(commandNames = "apply", commandDescription = "Apply a delta zip (input, made with --delta-from) to the build folder it was made against (output). Interrupted applies are rolled back on the next run.")
+    public static class Apply
+    {
+        private Apply() {}
+    }
 }
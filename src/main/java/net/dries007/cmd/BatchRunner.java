@@ -0,0 +1,443 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import net.dries007.cmd.util.DeleteOnExit;
+import net.dries007.cmd.util.cache.ModCache;
+import net.dries007.cmd.util.cache.SizeHints;
+import net.dries007.cmd.util.cache.UrlCache;
+import net.dries007.cmd.util.download.DownloadEngine;
+import net.dries007.cmd.util.forge.ForgeJson;
+import net.dries007.cmd.util.manifest.CurseFile;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds many packs in one go, each with its own Worker, but with one download engine, mod cache and forge json between them.
+ *
+ * Every line of the list is the options of one pack, on top of the options the batch was started with.
+ * A file used by more than one pack (same projectID:fileID) is only fetched by the first pack that asks for it,
+ * and hardlinked into a shared folder for the others to pick up. Packs that start later still find it there.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class BatchRunner
+{
+    private final Arguments arguments;
+    private final List<String> sharedArgs;
+    private final PrintStream logger;
+    private File shared;
+
+    private final List<Arguments> packs = new ArrayList<>();
+    private final ConcurrentMap<String, CompletableFuture<CurseFile>> mods = new ConcurrentHashMap<>(); // Keyed by 'projectID:fileID'
+    private final AtomicInteger sharedCount = new AtomicInteger();
+    private DownloadEngine downloadEngine;
+    private ModCache modCache;
+    private UrlCache urlCache;
+    private SizeHints sizeHints;
+    private CompletableFuture<ForgeJson> forgeJson;
+
+    /**
+     * @param args all command line arguments, the options before the batch command are used for every pack.
+     */
+    public BatchRunner(Arguments arguments, String[] args, PrintStream logger)
+    {
+        this.arguments = arguments;
+        this.sharedArgs = getSharedArgs(args);
+        this.logger = logger;
+    }
+
+    /**
+     * Everything in front of the command, except the input, output and log, which are different for every pack.
+     */
+    private static List<String> getSharedArgs(String[] args)
+    {
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "batch":
+                    return out;
+                case "-i":
+                case "--input":
+                case "-o":
+                case "--output":
+                case "-l":
+                case "--log":
+                    i++;
+                    break;
+                default:
+                    out.add(args[i]);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Split a line into arguments on whitespace. Double quotes group, for paths with spaces.
+     */
+    private static List<String> split(String line)
+    {
+        List<String> out = new ArrayList<>();
+        StringBuilder sb = null;
+        boolean quoted = false;
+        for (char c : line.toCharArray())
+        {
+            if (c == '"')
+            {
+                quoted = !quoted;
+                if (sb == null) sb = new StringBuilder();
+            }
+            else if (Character.isWhitespace(c) && !quoted)
+            {
+                if (sb != null) out.add(sb.toString());
+                sb = null;
+            }
+            else
+            {
+                if (sb == null) sb = new StringBuilder();
+                sb.append(c);
+            }
+        }
+        if (quoted) throw new ParameterException("Unclosed quote in: " + line);
+        if (sb != null) out.add(sb.toString());
+        return out;
+    }
+
+    /**
+     * Parse and validate every line up front, so a typo on the last line doesn't show up after the rest is built.
+     */
+    @SuppressWarnings("unchecked")
+    private void readList() throws IOException
+    {
+        Set<File> outputs = new HashSet<>();
+        Set<File> writeLocks = new HashSet<>();
+        int lineNumber = 0;
+        for (String line : (List<String>) FileUtils.readLines(new File(arguments.input), "UTF-8"))
+        {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            try
+            {
+                List<String> args = new ArrayList<>(sharedArgs);
+                args.addAll(split(line));
+                Arguments pack = new Arguments();
+                JCommander jCommander = Main.makeJCommander(pack);
+                jCommander.parse(args.toArray(new String[args.size()]));
+                String command = jCommander.getParsedCommand();
+                if (!"client".equals(command) && !"server".equals(command)) throw new ParameterException("Every pack must use either client or server.");
+                if (pack.output != null && !pack.output.isAbsolute()) pack.output = new File(arguments.output, pack.output.getPath());
+                if (pack.useLock != null && !pack.useLock.isAbsolute()) pack.useLock = new File(arguments.output, pack.useLock.getPath());
+                if (pack.writeLock != null && !pack.writeLock.isAbsolute()) pack.writeLock = new File(arguments.output, pack.writeLock.getPath());
+                pack.validate(command);
+                if (!outputs.add(pack.output)) throw new ParameterException("The output is already used by another pack.");
+                if (pack.writeLock != null && !writeLocks.add(pack.writeLock)) throw new ParameterException("The lockfile to write is already used by another pack.");
+                if (pack.log == null) pack.log = new File(pack.output.getPath() + ".log");
+                packs.add(pack);
+            }
+            catch (ParameterException e)
+            {
+                throw new ParameterException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        if (packs.isEmpty()) throw new ParameterException("The batch list has no packs.");
+    }
+
+    public void run()
+    {
+        try
+        {
+            readList();
+        }
+        catch (ParameterException | IOException e)
+        {
+            logger.println("ERROR: " + e.getMessage());
+            close();
+            return;
+        }
+
+        logger.println("BATCH: " + packs.size() + " packs, " + arguments.parallelPacks + " at a time");
+        ExecutorService executor = null;
+        try
+        {
+            start();
+            executor = Executors.newFixedThreadPool(arguments.parallelPacks, r -> {
+                Thread thread = new Thread(r, "Batch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < packs.size(); i++)
+            {
+                final int index = i;
+                futures.add(executor.submit(() -> runPack(index)));
+            }
+            for (Future<?> future : futures)
+            {
+                future.get();
+            }
+        }
+        catch (Throwable e)
+        {
+            logger.println("BATCH FAILED: " + e);
+        }
+        finally
+        {
+            if (executor != null) executor.shutdownNow();
+        }
+        finish();
+        close();
+    }
+
+    private void start() throws IOException
+    {
+        for (int i = 0; ; i++)
+        {
+            shared = new File(arguments.tmp, Helper.NAME + "_batch_" + i);
+            // mkdir, not exists, so runs starting at the same time never pick the same one.
+            if (shared.mkdir()) break;
+            if (!shared.exists()) throw new IOException("Can't make a tmp folder in " + arguments.tmp);
+        }
+        if (!arguments.keepTmp)
+        {
+            DeleteOnExit.add(shared);
+        }
+
+        if (arguments.cache != null)
+        {
+            modCache = new ModCache(new File(arguments.cache, "mods"), arguments.cacheSize * 1024 * 1024);
+            urlCache = new UrlCache(new File(arguments.cache, "urls.json"), arguments.urlTtl * 3600000L, arguments.urlNegativeTtl * 3600000L);
+            Helper.setUrlCache(urlCache);
+            sizeHints = new SizeHints(new File(arguments.cache, "sizes.json"));
+        }
+
+        downloadEngine = new DownloadEngine(arguments.resolveThreads, arguments.threads, arguments.hostConnections);
+        downloadEngine.setRetries(arguments.retries, arguments.retryDelay);
+        if (arguments.hedge) downloadEngine.enableHedging();
+        if (arguments.segmentSize > 0) downloadEngine.enableSegmenting(arguments.segmentSize * 1024 * 1024, arguments.segments);
+        // Partial downloads must outlive the tmp folder to be resumed by the next run.
+        if (arguments.cache != null) downloadEngine.setPartFolder(new File(arguments.cache, "partial"));
+        else if (arguments.keepTmp) downloadEngine.setPartFolder(new File(arguments.tmp, Helper.NAME + "_partial"));
+    }
+
+    private void runPack(int index)
+    {
+        Arguments pack = packs.get(index);
+        String name = String.format("[%d/%d] %s -> %s", index + 1, packs.size(), pack.input, pack.output);
+        logger.println("BATCH: Starting " + name);
+        Worker worker = new Worker(pack, this);
+        try
+        {
+            worker.setLogger(new PrintStream(new FileOutputStream(pack.log)));
+        }
+        catch (IOException e)
+        {
+            logger.println("BATCH: " + name + " FAILED: Can't open the log " + pack.log + ": " + e.getMessage());
+            return;
+        }
+        worker.run();
+        if (worker.getError() != null)
+        {
+            logger.println("BATCH: " + name + " FAILED: " + worker.getError());
+        }
+        else if (!worker.getFailedMods().isEmpty())
+        {
+            logger.println("BATCH: " + name + " DOWNLOADS MISSING: " + worker.getFailedMods().size() + " mods, see " + pack.log);
+        }
+        else
+        {
+            logger.println("BATCH: " + name + " OK");
+        }
+    }
+
+    private void finish()
+    {
+        logger.println("BATCH: " + mods.size() + " different mods, " + sharedCount.get() + " times shared between packs");
+        if (downloadEngine != null)
+        {
+            if (!arguments.quiet)
+            {
+                logger.println("HOSTS:");
+                for (String line : downloadEngine.getHostReport())
+                {
+                    logger.println(line);
+                }
+            }
+            logger.println("RETRIES: " + downloadEngine.getRetryReport());
+            if (!arguments.quiet)
+            {
+                logger.println("STAGES:");
+                for (String line : downloadEngine.getStageReport())
+                {
+                    logger.println(line);
+                }
+            }
+            downloadEngine.shutdown();
+        }
+        if (sizeHints != null)
+        {
+            try
+            {
+                sizeHints.save();
+            }
+            catch (IOException e)
+            {
+                logger.println("WARNING: Could not save the size hints: " + e.getMessage());
+            }
+        }
+        if (modCache != null)
+        {
+            try
+            {
+                modCache.save();
+                logger.println("CACHE: " + modCache.getStats());
+            }
+            catch (IOException e)
+            {
+                logger.println("WARNING: Could not save the mod cache index: " + e.getMessage());
+            }
+        }
+        if (urlCache != null)
+        {
+            try
+            {
+                urlCache.save();
+                logger.println("URL CACHE: " + urlCache.getStats());
+            }
+            catch (IOException e)
+            {
+                logger.println("WARNING: Could not save the URL cache: " + e.getMessage());
+            }
+        }
+    }
+
+    private void close()
+    {
+        if (logger != System.out)
+        {
+            logger.println();
+            logger.flush();
+            logger.close();
+        }
+    }
+
+    private static String getKey(CurseFile curseFile)
+    {
+        return curseFile.projectID + ":" + curseFile.fileID;
+    }
+
+    /**
+     * @return null if the caller is the first to ask for this file, it must get it and then publish. Otherwise what the first one published.
+     */
+    public CompletableFuture<CurseFile> claim(CurseFile curseFile)
+    {
+        CompletableFuture<CurseFile> existing = mods.putIfAbsent(getKey(curseFile), new CompletableFuture<>());
+        if (existing != null) sharedCount.incrementAndGet();
+        return existing;
+    }
+
+    /**
+     * Make a claimed file available to the other packs. Must be called, also when it failed, or they wait forever.
+     * Must be done before the file is moved into the pack, it's linked from where it was downloaded.
+     *
+     * @param ok false if the caller didn't get the file, the others have to try themselves.
+     */
+    public void publish(CurseFile curseFile, boolean ok)
+    {
+        CompletableFuture<CurseFile> future = mods.get(getKey(curseFile));
+        if (!ok || curseFile.file == null || !curseFile.file.isFile())
+        {
+            future.complete(null);
+            return;
+        }
+        CurseFile copy = new CurseFile();
+        copy.projectID = curseFile.projectID;
+        copy.fileID = curseFile.fileID;
+        copy.projectName = curseFile.projectName;
+        copy.fileName = curseFile.fileName;
+        copy.url = curseFile.url;
+        copy.size = curseFile.size;
+        copy.sha1 = curseFile.sha1;
+        copy.md5 = curseFile.md5;
+        copy.fingerprint = curseFile.fingerprint;
+        copy.file = new File(new File(shared, curseFile.projectID + "-" + curseFile.fileID), curseFile.fileName);
+        try
+        {
+            //noinspection ResultOfMethodCallIgnored
+            copy.file.getParentFile().mkdirs();
+            Helper.link(curseFile.file, copy.file);
+            future.complete(copy);
+        }
+        catch (IOException e)
+        {
+            future.complete(null);
+        }
+    }
+
+    /**
+     * The forge version list is only downloaded once, by whoever needs it first.
+     */
+    public synchronized CompletableFuture<ForgeJson> getForgeJson()
+    {
+        if (forgeJson == null)
+        {
+            forgeJson = CompletableFuture.supplyAsync(() -> {
+                try
+                {
+                    return Helper.parseJson(Helper.URL_FORGE_JSON, ForgeJson.class);
+                }
+                catch (IOException e)
+                {
+                    throw new CompletionException(e);
+                }
+            });
+        }
+        return forgeJson;
+    }
+
+    public DownloadEngine getDownloadEngine()
+    {
+        return downloadEngine;
+    }
+
+    public ModCache getModCache()
+    {
+        return modCache;
+    }
+
+    public UrlCache getUrlCache()
+    {
+        return urlCache;
+    }
+
+    public SizeHints getSizeHints()
+    {
+        return sizeHints;
+    }
+}
@@ -17,14 +17,22 @@
 package net.dries007.cmd;
 
 import com.google.gson.*;
+import net.dries007.cmd.util.cache.UrlCache;
 import net.dries007.cmd.util.forge.ForgeFile;
 import net.dries007.cmd.util.forge.ForgeFileJson;
+import net.dries007.cmd.util.http.Http;
 import org.apache.commons.io.IOUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,6 +46,7 @@ public class Helper
     public static final String URL_FORGE_MAVEN = "http://files.minecraftforge.net/maven/net/minecraftforge/forge/";
     public static final String URL_FORGE_JSON = URL_FORGE_MAVEN + "json";
     public static final String URL_MAGIC = "https://cursemeta.dries007.net/";
+    public static final String URL_CURSEFORGE_PROJECTS = "https://minecraft.curseforge.com/projects/";
     public static final Pattern PATTERN_INPUT_CURSE_ID = Pattern.compile("^(\\d+)(?::(\\d+|-1|release|beta))?$");
 
     public static final Arguments ARGUMENTS = new Arguments();
@@ -45,75 +54,189 @@ public class Helper
             .registerTypeHierarchyAdapter(ForgeFile.class, new ForgeFileJson())
             .create();
 
-    public static final int MAX_REDIRECTS = 10;
+    public static final int MAX_REDIRECTS = Http.MAX_REDIRECTS;
     public static final JsonParser JSON_PARSER = new JsonParser();
 
+    private static UrlCache urlCache;
+
     private Helper() {}
 
+    /**
+     * Set (or clear with null) the cache used for all URL resolution done here.
+     */
+    public static void setUrlCache(UrlCache urlCache)
+    {
+        Helper.urlCache = urlCache;
+    }
+
+    /**
+     * @return null if the file is no longer available. Failing to reach the server is an IOException, and is not cached.
+     */
     public static String getFileURL(String projectName, int fileId) throws IOException
     {
+        String key = "file:" + projectName + "/" + fileId;
+        UrlCache.Entry cached = urlCache == null ? null : urlCache.lookup(key);
+        if (cached != null) return cached.getValue();
+
         String pre = "https://www.curseforge.com/minecraft/mc-mods/" + projectName + "/download/" + fileId + "/file";
-        String post = getFinalURL(pre);
-        return pre.equals(post) ? null : post;
+        String out;
+        try
+        {
+            String post = Http.getFinalURLStrict(pre);
+            out = pre.equals(post) ? null : post;
+        }
+        catch (FileNotFoundException e)
+        {
+            out = null; // That's an answer too
+        }
+
+        if (urlCache != null) urlCache.put(key, out);
+        return out;
     }
 
     public static String getProjectName(int projectId) throws IOException
     {
-        String out = getFinalURL("https://minecraft.curseforge.com/projects/" + projectId);
-        return out.substring(out.lastIndexOf('/') + 1);
+        String key = "project:" + projectId;
+        UrlCache.Entry cached = urlCache == null ? null : urlCache.lookup(key);
+        if (cached != null && cached.getValue() != null) return cached.getValue();
+
+        String url = URL_CURSEFORGE_PROJECTS + projectId;
+        String out = Http.getFinalURLStrict(url);
+        out = out.substring(out.lastIndexOf('/') + 1);
+
+        // Not redirected means we didn't get the slug, so don't remember the id as one.
+        if (urlCache != null && !out.equals(String.valueOf(projectId))) urlCache.put(key, out);
+        return out;
+    }
+
+    /**
+     * To be called when a download from a URL obtained via getFileURL fails with a 404.
+     */
+    public static void invalidateFileURL(String projectName, int fileId)
+    {
+        if (urlCache != null)
+        {
+            urlCache.invalidate("file:" + projectName + "/" + fileId);
+        }
+    }
+
+    /**
+     * getFinalURL, but cached. Only for URLs that don't change often, like metadata.
+     */
+    private static String getCachedFinalURL(String url) throws IOException
+    {
+        String key = "url:" + url;
+        UrlCache.Entry cached = urlCache == null ? null : urlCache.lookup(key);
+        if (cached != null && cached.getValue() != null) return cached.getValue();
+
+        String out = Http.getFinalURLStrict(url);
+
+        if (urlCache != null) urlCache.put(key, out);
+        return out;
     }
 
     public static String getFinalURL(String url) throws IOException
     {
-        for (int i = 0; i < MAX_REDIRECTS; i++)
+        return Http.getFinalURL(url);
+    }
+
+    public static void sleep(int timeout)
+    {
+        try
         {
-            url = url.replace(" ", "%20");
-            HttpURLConnection con = null;
-            try
+            Thread.sleep(timeout);
+        }
+        catch (InterruptedException ignored)
+        {
+
+        }
+    }
+
+    public static String hash(File file, String algorithm) throws IOException
+    {
+        InputStream is = null;
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance(algorithm);
+            is = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buffer)) != -1)
             {
-                URL objURL = new URL(url);
-                con = (HttpURLConnection) objURL.openConnection();
-                con.setInstanceFollowRedirects(false);
-                con.connect();
-                int code = con.getResponseCode();
-                String newUrl = null;
-                if (code == 200) {
-                    return url;
-                }
-                if (code >= 300 && code < 400) {
-                    newUrl = con.getHeaderField("Location");
-                }
-                if (newUrl == null)
-                {
-                    url = url.replace("?cookieTest=1", "");
-                } else if (newUrl.charAt(0) == '/') {
-                    url = objURL.getProtocol()+"://"+objURL.getAuthority()+newUrl;
-                } else {
-                    url = newUrl;
-                }
+                digest.update(buffer, 0, n);
             }
-            catch (IOException e)
+            return toHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException("Hash algorithm " + algorithm + " not available.", e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Move a file or folder, replacing existing files. Folders are merged into existing folders.
+     * Only a rename if on the same file system, copies otherwise.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public static void move(File from, File to) throws IOException
+    {
+        to.getAbsoluteFile().getParentFile().mkdirs();
+        if (!from.isDirectory())
+        {
+            // Falls back to copy & delete across file systems.
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        if (!to.exists())
+        {
+            try
             {
-                return url.replace("?cookieTest=1", "");
+                Files.move(from.toPath(), to.toPath());
+                return;
             }
-            finally
+            catch (IOException ignored)
             {
-                if (con != null) con.disconnect();
+                // Different file system, do it file by file.
             }
         }
-        throw new IOException("Redirect limit (" + MAX_REDIRECTS + ") exceeded on url: " + url);
+        to.mkdir();
+        File[] children = from.listFiles();
+        if (!to.isDirectory() || children == null) throw new IOException("Can't move folder " + from + " to " + to);
+        for (File child : children)
+        {
+            move(child, new File(to, child.getName()));
+        }
+        from.delete();
     }
 
-    public static void sleep(int timeout)
+    /**
+     * Hardlink if possible (same file system), copy otherwise. Replaces existing files.
+     */
+    public static void link(File from, File to) throws IOException
     {
+        Files.deleteIfExists(to.toPath());
         try
         {
-            Thread.sleep(timeout);
+            Files.createLink(to.toPath(), from.toPath());
         }
-        catch (InterruptedException ignored)
+        catch (IOException | UnsupportedOperationException e)
         {
+            Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 
+    public static String toHex(byte[] bytes)
+    {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
         }
+        return sb.toString();
     }
 
     public static <T> T parseJson(String url, Class<T> aClass) throws IOException, JsonParseException
@@ -121,9 +244,15 @@ public class Helper
         InputStreamReader isr = null;
         try
         {
-            isr = new InputStreamReader(new URL(getFinalURL(url)).openStream());
+            isr = new InputStreamReader(Http.openStream(getCachedFinalURL(url)));
             return GSON.fromJson(isr, aClass);
         }
+        catch (IOException | JsonParseException e)
+        {
+            // The redirect target may have moved, don't keep it around.
+            if (urlCache != null) urlCache.invalidate("url:" + url);
+            throw e;
+        }
         finally
         {
             IOUtils.closeQuietly(isr);
@@ -133,14 +262,15 @@ public class Helper
     public static JsonElement parseJson(String url) throws IOException, JsonParseException
     {
         InputStreamReader isr = null;
-        URL finalURL = new URL(getFinalURL(url));
+        String finalURL = getCachedFinalURL(url);
         try
         {
-            isr = new InputStreamReader(finalURL.openStream());
+            isr = new InputStreamReader(Http.openStream(finalURL));
             return JSON_PARSER.parse(isr);
         }
         catch (Exception e)
         {
+            if (urlCache != null) urlCache.invalidate("url:" + url);
             System.err.println(finalURL);
             throw e;
         }
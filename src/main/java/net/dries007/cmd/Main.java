@@ -34,7 +34,7 @@ import static net.dries007.cmd.Helper.NAME;
 public class Main
 {
     private static String dependencies;
-    private static JCommander jCommander = new JCommander();
+    private static JCommander jCommander = makeJCommander(ARGUMENTS);
 
     static
     {
@@ -50,13 +50,24 @@ public class Main
             e.printStackTrace();
         }
 
+        jCommander.addCommand(ARGUMENTS.apply);
+        jCommander.addCommand(ARGUMENTS.batch);
+    }
+
+    /**
+     * With the client and server commands, as used for every pack in a batch.
+     */
+    static JCommander makeJCommander(Arguments arguments)
+    {
+        JCommander jCommander = new JCommander();
         jCommander.setAllowParameterOverwriting(true);
         jCommander.setProgramName(NAME);
         jCommander.setColumnSize(Integer.MAX_VALUE);
 
-        jCommander.addObject(ARGUMENTS);
-        jCommander.addCommand(ARGUMENTS.client);
-        jCommander.addCommand(ARGUMENTS.server);
+        jCommander.addObject(arguments);
+        jCommander.addCommand(arguments.client);
+        jCommander.addCommand(arguments.server);
+        return jCommander;
     }
 
     public static void main(String[] args) throws FileNotFoundException
@@ -80,16 +91,28 @@ public class Main
             printHelp();
         }
 
-        Worker w = new Worker(ARGUMENTS);
-
         FileOutputStream fos = null;
+        PrintStream logger = System.out;
         if (ARGUMENTS.log != null && !ARGUMENTS.quiet)
         {
             fos = new FileOutputStream(ARGUMENTS.log);
-            w.setLogger(new PrintStream(new TeeOutputStream(System.out, fos)));
+            logger = new PrintStream(new TeeOutputStream(System.out, fos));
         }
 
-        w.run();
+        if (ARGUMENTS.isApply)
+        {
+            new Patcher(ARGUMENTS.input, ARGUMENTS.output, logger).run();
+        }
+        else if (ARGUMENTS.isBatch)
+        {
+            new BatchRunner(ARGUMENTS, args, logger).run();
+        }
+        else
+        {
+            Worker w = new Worker(ARGUMENTS);
+            w.setLogger(logger);
+            w.run();
+        }
 
         IOUtils.closeQuietly(fos);
     }
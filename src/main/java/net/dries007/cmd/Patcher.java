@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.util.ModpackException;
+import net.dries007.cmd.util.manifest.BuildState;
+import net.dries007.cmd.util.manifest.Delta;
+import net.dries007.cmd.util.zip.ZipReader;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Applies a delta zip to the build folder it was made against.
+ *
+ * Either all of it ends up in place, or none of it:
+ * everything is unpacked into a staging folder first, then a journal is written listing every path that is about to change.
+ * Only then are the existing files moved to a backup folder, and the new ones moved in. (All renames, in the same folder.)
+ * Deleting the journal is the commit. If there is a journal when starting, the last apply was interrupted and is rolled back first.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class Patcher
+{
+    public static final String JOURNAL = "." + Helper.NAME + "-journal.json";
+    public static final String STAGING = "." + Helper.NAME + "-staging";
+    public static final String BACKUP = "." + Helper.NAME + "-backup";
+
+    private final File delta;
+    private final File root;
+    private final File journalFile;
+    private final File staging;
+    private final File backup;
+    private final PrintStream logger;
+    private Throwable error;
+
+    public Patcher(String delta, File root, PrintStream logger)
+    {
+        this.delta = new File(delta);
+        this.root = root;
+        this.journalFile = new File(root, JOURNAL);
+        this.staging = new File(root, STAGING);
+        this.backup = new File(root, BACKUP);
+        this.logger = logger;
+    }
+
+    public void run()
+    {
+        try
+        {
+            recover();
+            apply();
+        }
+        catch (Throwable e)
+        {
+            error = e;
+            logger.println("APPLY FAILED: " + e);
+            try
+            {
+                rollback();
+                logger.println("Nothing was changed.");
+            }
+            catch (IOException e1)
+            {
+                logger.println("ERROR: Could not roll back, run apply again to finish that: " + e1);
+            }
+        }
+        if (logger != System.out)
+        {
+            logger.println();
+            logger.flush();
+            logger.close();
+        }
+    }
+
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    private void recover() throws IOException
+    {
+        if (journalFile.exists())
+        {
+            logger.println("RECOVER: The last apply was interrupted, rolling it back.");
+            rollback();
+        }
+        else if (staging.exists() || backup.exists())
+        {
+            // Died before the journal was written, or after the commit. Either way, all that's left is cleaning up.
+            FileUtils.deleteDirectory(staging);
+            FileUtils.deleteDirectory(backup);
+        }
+    }
+
+    private void apply() throws IOException, ModpackException
+    {
+        final Delta patch;
+        final String prefix;
+        Journal journal = new Journal();
+        List<String> removed = new ArrayList<>();
+        try (ZipReader zip = new ZipReader(delta))
+        {
+            prefix = Delta.findPrefix(zip);
+            if (prefix == null) throw new ModpackException("Not a delta zip: " + delta);
+            patch = Delta.read(zip, prefix);
+
+            BuildState current = BuildState.read(root);
+            if (current == null) throw new ModpackException("There is no build in " + root);
+            if (!current.getId().equals(patch.base)) throw new ModpackException("The delta was made against a different build than the one in " + root);
+
+            for (ZipReader.Entry entry : zip.getEntries())
+            {
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.startsWith(prefix) || name.equals(prefix + Delta.FILE_NAME)) continue;
+                journal.paths.add(checkPath(name.substring(prefix.length())));
+            }
+            for (String path : patch.removed)
+            {
+                removed.add(checkPath(path));
+            }
+            logger.println("APPLY: " + journal.paths.size() + " files to add or replace, " + removed.size() + " to remove");
+
+            zip.extractAll(staging, name -> name.startsWith(prefix) && !name.equals(prefix + Delta.FILE_NAME) ? name.substring(prefix.length()) : null, Runtime.getRuntime().availableProcessors());
+        }
+
+        // The state came out of a zip, record the files as they are going to be in the folder.
+        BuildState next = BuildState.read(staging);
+        if (next == null) throw new ModpackException("The delta has no build state.");
+        next.refresh(staging, root);
+        next.write(staging);
+
+        journal.paths.addAll(removed);
+        for (String path : journal.paths)
+        {
+            if (new File(root, path).exists()) journal.existed.add(path);
+        }
+        writeJournal(journal);
+
+        for (String path : journal.existed)
+        {
+            Helper.move(new File(root, path), new File(backup, path));
+        }
+        for (String path : journal.paths)
+        {
+            File file = new File(staging, path);
+            if (file.exists()) Helper.move(file, new File(root, path));
+        }
+
+        Files.delete(journalFile.toPath()); // Commit
+
+        for (String path : removed)
+        {
+            // Clean up folders that are now empty, but never the output folder itself.
+            for (File parent = new File(root, path).getParentFile(); parent != null && !parent.equals(root) && parent.delete(); parent = parent.getParentFile()) ;
+        }
+        FileUtils.deleteDirectory(staging);
+        FileUtils.deleteDirectory(backup);
+        logger.println("APPLY OK");
+    }
+
+    /**
+     * Reject the whole delta if any of its paths would end up outside of the build folder, or in the way of the apply itself.
+     *
+     * @return the path, normalized.
+     */
+    private String checkPath(String path) throws ModpackException
+    {
+        Path rootPath = root.toPath().toAbsolutePath().normalize();
+        Path file = rootPath.resolve(path).normalize();
+        if (!file.startsWith(rootPath) || file.equals(rootPath)) throw new ModpackException("The delta contains a path outside of " + root + ": " + path);
+        String name = rootPath.relativize(file).toString().replace(File.separatorChar, '/');
+        String first = name.split("/", 2)[0];
+        if (first.equals(JOURNAL) || first.equals(JOURNAL + ".tmp") || first.equals(STAGING) || first.equals(BACKUP))
+        {
+            throw new ModpackException("The delta contains a path that's reserved for applying it: " + path);
+        }
+        return name;
+    }
+
+    /**
+     * Put everything back the way it was before the apply started, and remove what's left of it.
+     */
+    private void rollback() throws IOException
+    {
+        if (journalFile.exists())
+        {
+            Journal journal = readJournal();
+            Set<String> existed = new HashSet<>(journal.existed);
+            for (String path : journal.paths)
+            {
+                File file = new File(root, path);
+                File old = new File(backup, path);
+                if (old.exists())
+                {
+                    Files.deleteIfExists(file.toPath());
+                    Helper.move(old, file);
+                }
+                else if (!existed.contains(path))
+                {
+                    // New in the delta
+                    Files.deleteIfExists(file.toPath());
+                }
+                // else: Never got moved out of the way.
+            }
+            Files.delete(journalFile.toPath());
+        }
+        Files.deleteIfExists(new File(root, JOURNAL + ".tmp").toPath());
+        FileUtils.deleteDirectory(staging);
+        FileUtils.deleteDirectory(backup);
+    }
+
+    private void writeJournal(Journal journal) throws IOException
+    {
+        File tmp = new File(root, JOURNAL + ".tmp");
+        FileUtils.writeStringToFile(tmp, Helper.GSON.toJson(journal));
+        Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Journal readJournal() throws IOException
+    {
+        try
+        {
+            Journal journal = Helper.GSON.fromJson(FileUtils.readFileToString(journalFile), Journal.class);
+            if (journal == null || journal.paths == null || journal.existed == null) throw new IOException("Empty journal " + journalFile);
+            return journal;
+        }
+        catch (JsonParseException e)
+        {
+            throw new IOException("Invalid journal " + journalFile, e);
+        }
+    }
+
+    private static class Journal
+    {
+        private List<String> paths = new ArrayList<>();
+        private List<String> existed = new ArrayList<>();
+    }
+}
@@ -20,19 +20,23 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import net.dries007.cmd.util.DeleteOnExit;
 import net.dries007.cmd.util.ModpackException;
-import net.dries007.cmd.util.ProgressMonitorLogger;
+import net.dries007.cmd.util.cache.ModCache;
+import net.dries007.cmd.util.cache.SizeHints;
+import net.dries007.cmd.util.cache.UrlCache;
+import net.dries007.cmd.util.download.Checksums;
+import net.dries007.cmd.util.download.DownloadEngine;
 import net.dries007.cmd.util.forge.ForgeBuild;
+import net.dries007.cmd.util.http.RangeSource;
 import net.dries007.cmd.util.forge.ForgeFile;
 import net.dries007.cmd.util.forge.ForgeJson;
+import net.dries007.cmd.util.manifest.BuildState;
 import net.dries007.cmd.util.manifest.CurseFile;
+import net.dries007.cmd.util.manifest.Delta;
+import net.dries007.cmd.util.manifest.Lockfile;
 import net.dries007.cmd.util.manifest.Manifest;
 import net.dries007.cmd.util.manifest.Modloader;
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.FileHeader;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.progress.ProgressMonitor;
-import net.lingala.zip4j.util.Zip4jConstants;
+import net.dries007.cmd.util.zip.ZipReader;
+import net.dries007.cmd.util.zip.ZipWriter;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
@@ -41,23 +45,31 @@ import java.io.*;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Set;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipException;
 
 /**
  * @author Dries007
  */
 public class Worker implements Runnable
 {
+    private static final String MANIFEST = "manifest.json";
+
 
     private final Arguments arguments;
+    private final BatchRunner batch; // Only set when part of a batch
     private final File tmp;
-    private final File tmpUnzip;
     private final File tmpDownload;
     private final File tmpOut;
 
@@ -70,35 +82,70 @@ public class Worker implements Runnable
 
     // For use outside of the CLI
     private PrintStream logger = System.out;
-    private Throwable error;
+    private volatile Throwable error;
+
+    // Everything that can be aborted if something goes wrong
+    private final CompletableFuture<Void> aborted = new CompletableFuture<>();
+    private volatile ZipReader unzipping;
+    private volatile Process forgeProcess;
+    private final List<String> wasted = new ArrayList<>();
+    private ScheduledExecutorService watchdog;
+
+    // Only set when enabled
+    private ModCache modCache;
+    private UrlCache urlCache;
+    private SizeHints sizeHints;
+    private Lockfile lockfile;
+    private BuildState previousState;
+    private ZipReader previousZip;
+
+    // Only set while working
+    private DownloadEngine downloadEngine;
+    private DownloadEngine.Group downloadGroup;
+    private ExecutorService stageExecutor;
+    private CompletableFuture<Void> overridesStage;
+    private ZipWriter zipWriter;
+    private ZipReader input;
+    private String zipPrefix;
+    private final Map<String, ZipReader.Entry> overrideEntries = new ConcurrentHashMap<>(); // By path in the output
+    private final Map<CurseFile, String> keptMods = new ConcurrentHashMap<>(); // Unchanged since the previous build, by path in the output
+    private volatile String forgeInstalled;
 
     // Only set after the appropriate stage is done
     private Manifest manifest;
+    private String forgeInstaller;
     private String name;
+    private File packFolder;
 
-    @SuppressWarnings({"ResultOfMethodCallIgnored", "WeakerAccess"})
+    @SuppressWarnings("WeakerAccess")
     public Worker(Arguments arguments)
+    {
+        this(arguments, null);
+    }
+
+    /**
+     * @param batch if not null, the downloads, caches and forge json are shared with the other packs in the batch.
+     */
+    @SuppressWarnings({"ResultOfMethodCallIgnored", "WeakerAccess"})
+    public Worker(Arguments arguments, BatchRunner batch)
     {
         this.arguments = arguments;
+        this.batch = batch;
 
         if (!arguments.isValidated())
         {
             throw new IllegalArgumentException("Arguments where not validated!");
         }
 
-        int i = 0;
         File tmp;
-        do
+        for (int i = 0; ; i++)
         {
-            tmp = new File(arguments.tmp, Helper.NAME + "_" + (i++));
+            tmp = new File(arguments.tmp, Helper.NAME + "_" + i);
+            // mkdir, not exists, so Workers starting at the same time (batch) never pick the same one.
+            if (tmp.mkdir()) break;
+            if (!tmp.exists()) throw new IllegalStateException("Can't make a tmp folder in " + arguments.tmp);
         }
-        while (tmp.exists());
-
         this.tmp = tmp;
-        tmp.mkdirs();
-
-        tmpUnzip = new File(tmp, "unzip");
-        tmpUnzip.mkdir();
 
         tmpDownload = new File(tmp, "download");
         tmpDownload.mkdir();
@@ -111,111 +158,395 @@ public class Worker implements Runnable
             DeleteOnExit.add(tmp);
         }
 
-        if (!tmp.isDirectory() || !tmpUnzip.isDirectory() || !tmpDownload.isDirectory() || !tmpOut.isDirectory())
+        if (!tmp.isDirectory() || !tmpDownload.isDirectory() || !tmpOut.isDirectory())
         {
             throw new IllegalArgumentException("The tmp directories couldn't be created: " + tmp);
         }
     }
 
     /**
-     * Does most of the actual work, in order:
-     * - Unpack & parse manifest
-     * - Unpack zip (threaded)
-     * - Download all mods (threaded)
-     * - Do sided stuff (download & install forge if required; make multimc instance file)
-     * - Move/zip from tmp to output.
+     * Does most of the actual work, as a graph of stages that run as soon as what they depend on is done:
+     * - Parse manifest (if the pack is a URL: read with range requests if possible, the pack is downloaded in the background)
+     * - Extract the overrides straight into the pack (or output zip)
+     * - Resolve & download all mods (see DownloadEngine), each moved into the pack once the overrides are in
+     * - Forge json, installer & install (if required)
+     * - Output (sided stuff, info file, move/zip from tmp to output), once all of the above is done.
      */
     private void work() throws Throwable
     {
-        if (arguments.isInputURL)
+        if (arguments.deadline > 0)
         {
-            if (!arguments.quiet)
-            {
-                logger.println("Downloading pack from URL: " + arguments.input);
-            }
-            File input = new File(tmp, FilenameUtils.getName(arguments.input));
-            FileUtils.copyURLToFile(new URL(arguments.input), input);
-            arguments.input = input.getAbsolutePath();
+            watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "Deadline");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watchdog.schedule(() -> fail(new TimeoutException("Deadline of " + arguments.deadline + " seconds exceeded")), arguments.deadline, TimeUnit.SECONDS);
+        }
+
+        stageExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Stage");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (batch != null)
+        {
+            modCache = batch.getModCache();
+            urlCache = batch.getUrlCache();
+            sizeHints = batch.getSizeHints();
+        }
+        else if (arguments.cache != null)
+        {
+            modCache = new ModCache(new File(arguments.cache, "mods"), arguments.cacheSize * 1024 * 1024);
+            urlCache = new UrlCache(new File(arguments.cache, "urls.json"), arguments.urlTtl * 3600000L, arguments.urlNegativeTtl * 3600000L);
+            Helper.setUrlCache(urlCache);
+            sizeHints = new SizeHints(new File(arguments.cache, "sizes.json"));
+        }
+        if (arguments.useLock != null)
+        {
+            lockfile = Lockfile.read(arguments.useLock);
+        }
+
+        if (batch != null)
+        {
+            downloadEngine = batch.getDownloadEngine();
+        }
+        else
+        {
+            downloadEngine = new DownloadEngine(arguments.resolveThreads, arguments.threads, arguments.hostConnections);
+            downloadEngine.setRetries(arguments.retries, arguments.retryDelay);
+            if (arguments.hedge) downloadEngine.enableHedging();
+            if (arguments.segmentSize > 0) downloadEngine.enableSegmenting(arguments.segmentSize * 1024 * 1024, arguments.segments);
+            // Partial downloads must outlive the tmp folder to be resumed by the next run.
+            if (arguments.cache != null) downloadEngine.setPartFolder(new File(arguments.cache, "partial"));
+            else if (arguments.keepTmp) downloadEngine.setPartFolder(new File(arguments.tmp, Helper.NAME + "_partial"));
+        }
+        downloadGroup = downloadEngine.newGroup();
+
+        CompletableFuture<Void> packStage = arguments.isInputURL ? downloadPack() : CompletableFuture.completedFuture(null);
+        if (manifest == null)
+        {
+            input = new ZipReader(new File(arguments.input));
+            readManifest(input);
+        }
+        if (error != null) throw error;
+        packFolder = arguments.client.multimc ? makeMultiMCFolder() : tmpOut;
+        if (arguments.zipOutput)
+        {
+            // Everything is added to the zip as soon as it's in place, so there's (almost) nothing left to do at the end.
+            zipPrefix = arguments.rootZip || arguments.client.multimc ? "" : name + "/";
+            zipWriter = new ZipWriter(arguments.output, arguments.zipLevel, arguments.zipStore, arguments.reproducible);
         }
-        ProgressMonitor unzip = doUnpack();
 
         if (!arguments.quiet)
         {
             logger.println("Total mod count: " + manifest.files.size());
         }
-
-        // counter keeps track of download index for load sharing.
-        final AtomicInteger counter = new AtomicInteger(0);
-        // keep thread objects, so we can wait on them later.
-        final Thread[] downloaders = new Thread[arguments.threads];
-        for (int i = 0; i < arguments.threads; i++)
+        List<CurseFile> toDownload = manifest.files;
+        final File previousBuild = arguments.update ? arguments.output : arguments.deltaFrom;
+        if (previousBuild != null)
+        {
+            if (previousBuild.isDirectory())
+            {
+                previousState = BuildState.read(getStateFolder(previousBuild));
+            }
+            else if (previousBuild.isFile())
+            {
+                // When updating, the new zip is written next to it, and only replaces it once done.
+                previousZip = new ZipReader(previousBuild);
+                previousState = BuildState.read(previousZip, zipPrefix);
+            }
+            if (previousState == null && arguments.deltaFrom != null)
+            {
+                throw new ModpackException("There is no build to make a delta against in " + arguments.deltaFrom);
+            }
+            if (previousState == null)
+            {
+                logger.println("UPDATE: No previous build in the output, doing a full build.");
+            }
+        }
+        if (lockfile != null)
+        {
+            // Only once, the retry pass resolves from scratch in case the locked URL is what's broken.
+            int locked = 0;
+            for (CurseFile curseFile : manifest.files)
+            {
+                if (lockfile.apply(curseFile)) locked++;
+            }
+            logger.println("LOCK: " + locked + " of " + manifest.files.size() + " mods locked");
+        }
+        if (previousState != null)
         {
-            downloaders[i] = new Thread(new Downloader(counter), "Downloader-" + i);
-            downloaders[i].setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+            toDownload = new ArrayList<>();
+            for (int i = 0; i < manifest.files.size(); i++)
             {
-                @Override
-                public void uncaughtException(Thread t, Throwable e)
+                CurseFile curseFile = manifest.files.get(i);
+                String path = previousZip != null ? previousState.keepMod(curseFile, previousZip, zipPrefix) : previousState.keepMod(curseFile, previousBuild);
+                if (path == null)
                 {
-                    error = e;
+                    toDownload.add(curseFile);
+                    continue;
                 }
-            });
-            downloaders[i].start();
+                keptMods.put(curseFile, path);
+                if (!arguments.quiet)
+                {
+                    logger.printf("Mod %3d: %10d %10d '%s' '%s' Unchanged\n", i + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName);
+                }
+            }
+            logger.println("UPDATE: " + (manifest.files.size() - toDownload.size()) + " mods unchanged, " + toDownload.size() + " to download");
         }
 
-        // Forge related stuff
+        overridesStage = packStage.thenCompose(v -> stage(this::doOverrides)).thenCompose(zipped -> zipped);
+
+        CompletableFuture<Void> modsStage = downloadAll(toDownload, true).thenCompose(v -> retryFailed()).thenRun(() -> {
+            logger.println("All downloads done.");
+            logger.flush();
+        });
+
+        CompletableFuture<Void> forgeStage = CompletableFuture.completedFuture(null);
         if (!arguments.noForge)
         {
-            String forgeVersion = getForgeVersion(manifest);
+            final String forgeVersion = getForgeVersion(manifest);
             if (forgeVersion != null)
             {
-                ForgeJson forgeJson = downloadForgeJson();
-                if (error != null) throw error;
-                manifest.forgeBuild = resolveForgeBuild(forgeJson, forgeVersion);
-                if (error != null) throw error;
-                if (!arguments.client.multimc)
-                {
-                    File forge = downloadForgeInstaller(forgeJson);
-                    if (error != null) throw error;
-                    if (!arguments.isClient)
-                    {
-                        if (forge != null)
-                        {
-                            doForgeInstall(forge);
-                            if (error != null) throw error;
-                        }
-                        else
-                        {
-                            nonForgeModloaders.add("forge-no-installer-" + forgeVersion);
-                        }
-                    }
-                }
+                forgeStage = stage(this::downloadForgeJson).thenCompose(forgeJson -> stage(() -> {
+                    doForge(forgeJson, forgeVersion);
+                    return null;
+                }));
             }
         }
 
-        // wait on all threads to finish
-        while (unzip.getState() != ProgressMonitor.STATE_READY)
+        // Unchanged mods are copied from the previous zip as-is, once the overrides are in. (Like downloaded mods, an override of the same name wins.)
+        // A delta leaves them out.
+        CompletableFuture<Void> keptStage = overridesStage.thenCompose(v -> {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            if (!arguments.update || previousZip == null) return CompletableFuture.<Void>completedFuture(null);
+            for (String path : keptMods.values())
+            {
+                futures.add(zipWriter.addRaw(zipPrefix + path, previousZip, previousZip.getEntry(zipPrefix + path)));
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+        });
+
+        join(CompletableFuture.allOf(overridesStage, modsStage, keptStage, forgeStage).thenCompose(v -> stage(() -> {
+            doOutput();
+            return null;
+        })));
+        if (error != null) throw error;
+    }
+
+    /**
+     * First error wins. Aborts everything in flight, so the run ends as soon as possible.
+     */
+    private void fail(Throwable e)
+    {
+        synchronized (wasted)
         {
-            Helper.sleep(10);
+            if (error != null) return;
+            error = e;
+            abort();
         }
-        if (error != null) throw error;
-        if (unzip.getResult() != ProgressMonitor.RESULT_SUCCESS)
+        aborted.complete(null);
+    }
+
+    private void abort()
+    {
+        // A shared engine keeps going for the other packs, only our own transfers and tasks are stopped.
+        if (downloadGroup != null)
+        {
+            wasted.add("Downloads: " + (batch == null ? downloadEngine.cancel() : downloadGroup.cancel()));
+        }
+        ZipReader reader = unzipping;
+        if (reader != null)
+        {
+            reader.cancel();
+            wasted.add("Unzip: " + reader.getProgress());
+        }
+        Process process = forgeProcess;
+        if (process != null)
         {
-            throw new IOException("Couldn't unzip the input...", unzip.getException());
+            process.destroyForcibly();
+            wasted.add("Forge installer process");
         }
-        int i = downloaders.length;
-        for (Thread thread : downloaders)
+        if (stageExecutor != null)
         {
-            thread.join();
-            if (--i != 0)
+            stageExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run task on the stage pool. Checked exceptions are wrapped in a CompletionException.
+     */
+    private <T> CompletableFuture<T> stage(final Callable<T> task)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            if (error != null) throw new CompletionException(error);
+            try
             {
-                logger.println("Download thread done, " + i + " to go.");
+                return task.call();
             }
-            logger.flush();
+            catch (Exception e)
+            {
+                throw new CompletionException(e);
+            }
+        }, stageExecutor);
+    }
+
+    /**
+     * Second pass, by now the transient errors (server hiccups, throttling) are hopefully over.
+     */
+    private CompletableFuture<Void> retryFailed()
+    {
+        if (failedToDownload.isEmpty() || arguments.retries == 0 || error != null) return CompletableFuture.completedFuture(null);
+        List<CurseFile> retry = new ArrayList<>(failedToDownload);
+        failedToDownload.clear();
+        logger.println("Retrying " + retry.size() + " failed downloads...");
+        for (CurseFile curseFile : retry)
+        {
+            curseFile.url = null;
+        }
+        return downloadAll(retry, false);
+    }
+
+    private void doForge(ForgeJson forgeJson, String forgeVersion) throws IOException, InterruptedException
+    {
+        if (forgeJson == null)
+        {
+            nonForgeModloaders.add("forge-" + forgeVersion);
+            return;
+        }
+        manifest.forgeBuild = resolveForgeBuild(forgeJson, forgeVersion);
+        if (arguments.client.multimc) return;
+        if (previousState != null && forgeVersion.equals(previousState.getForge()))
+        {
+            logger.println("UPDATE: Forge " + forgeVersion + " is already installed.");
+            forgeInstalled = forgeVersion;
+            return;
+        }
+        File forge = downloadForgeInstaller(forgeJson);
+        if (forge != null) forgeInstalled = forgeVersion;
+        if (arguments.isClient) return;
+        if (forge != null)
+        {
+            doForgeInstall(forge);
+        }
+        else
+        {
+            nonForgeModloaders.add("forge-no-installer-" + forgeVersion);
+        }
+    }
+
+    /**
+     * Move a downloaded mod into the pack (and zip), unless the overrides already contain a file with the same name.
+     */
+    private CompletableFuture<Void> placeMod(CurseFile curseFile)
+    {
+        if (curseFile.file == null || !curseFile.file.isFile()) return CompletableFuture.completedFuture(null); // Failed
+        File target = new File(new File(packFolder, "mods"), curseFile.fileName);
+        if (target.exists()) return CompletableFuture.completedFuture(null);
+        try
+        {
+            if (zipWriter == null && (modCache != null || batch != null))
+            {
+                // Could be a hardlink to the cache (or another pack's copy). Editing the mod in the output must not change those.
+                //noinspection ResultOfMethodCallIgnored
+                target.getParentFile().mkdirs();
+                Files.copy(curseFile.file.toPath(), target.toPath());
+                Files.delete(curseFile.file.toPath());
+            }
+            else
+            {
+                Helper.move(curseFile.file, target);
+            }
+            curseFile.file = target;
+        }
+        catch (IOException e)
+        {
+            throw new CompletionException(e);
+        }
+        return zipWriter == null ? CompletableFuture.completedFuture(null) : zipWriter.add(getZipName(target), target);
+    }
+
+    private String getZipName(File file)
+    {
+        return zipPrefix + tmpOut.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Two stages per file: resolve (cache, metadata, redirects) and, if still required, download.
+     * The transfer is queued as soon as the URL is known, it doesn't wait on the other files being resolved.
+     * Once downloaded (and the overrides are in place) the file is moved into the pack.
+     *
+     * In a batch, only the first pack to ask for a file gets it, the others wait for it and link it into their own pack.
+     * If that pack couldn't get it, they try on their own. Retries are never shared, they are for our failures only.
+     */
+    private CompletableFuture<Void> downloadAll(List<CurseFile> files, boolean share)
+    {
+        List<Long> known = new ArrayList<>();
+        for (CurseFile curseFile : files)
+        {
+            if (curseFile.size < 0 && modCache != null) curseFile.size = modCache.getSize(curseFile);
+            if (curseFile.size < 0 && sizeHints != null) curseFile.size = sizeHints.get(curseFile);
+            if (curseFile.size >= 0) known.add(curseFile.size);
+        }
+        Collections.sort(known);
+        // Unknown sizes are assumed to be average. (The median, a few huge files would skew the mean.)
+        final long unknown = known.isEmpty() ? 0 : known.get(known.size() / 2);
+
+        List<CompletableFuture<Void>> downloads = new ArrayList<>(files.size());
+        for (final CurseFile curseFile : files)
+        {
+            final int index = manifest.files.indexOf(curseFile);
+            final CompletableFuture<CurseFile> shared = share && batch != null ? batch.claim(curseFile) : null;
+            CompletableFuture<Void> fetched;
+            if (shared == null)
+            {
+                fetched = fetchMod(index, curseFile, unknown);
+                if (share && batch != null) fetched = fetched.whenComplete((v, e) -> batch.publish(curseFile, e == null && !failedToDownload.contains(curseFile)));
+            }
+            else
+            {
+                fetched = shared.thenCompose(source -> {
+                    if (source == null) return fetchMod(index, curseFile, unknown);
+                    useSharedMod(index, curseFile, source);
+                    return CompletableFuture.<Void>completedFuture(null);
+                });
+            }
+            downloads.add(fetched.thenCompose(v -> overridesStage).thenCompose(v -> placeMod(curseFile)));
+        }
+        return CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> fetchMod(int index, CurseFile curseFile, long unknown)
+    {
+        return downloadGroup.resolve(getPriority(curseFile, unknown), () -> resolveMod(index, curseFile)).thenCompose(resolved -> {
+            if (!resolved) return CompletableFuture.<Void>completedFuture(null);
+            // Resolving may have told us the size.
+            return downloadGroup.submit(getPriority(curseFile, unknown), () -> transferMod(index, curseFile));
+        });
+    }
+
+    /**
+     * Biggest first (as far as we know), so a big file doesn't start last and finish long after everything else.
+     * Required mods always go before optional ones. Ties are FIFO, so without size information the manifest order is kept.
+     */
+    private static long getPriority(CurseFile curseFile, long unknown)
+    {
+        return (curseFile.required ? 1L << 62 : 0) + (curseFile.size < 0 ? unknown : curseFile.size);
+    }
+
+    private void join(CompletableFuture<?> future)
+    {
+        try
+        {
+            // Stop waiting as soon as something fails, whatever is left is being aborted.
+            CompletableFuture.anyOf(future, aborted).join();
+        }
+        catch (CompletionException e)
+        {
+            fail(e.getCause());
         }
-        if (error != null) throw error;
-        logger.println("All Download threads done without errors.");
-        logger.flush();
-        doOutput();
     }
 
     private void makeMarketingFile() throws FileNotFoundException
@@ -237,8 +568,11 @@ public class Worker implements Runnable
             pw.print("=======================");
             pw.println();
 
-            pw.print("Downloaded date/time: ");
-            pw.println(new Date().toString());
+            if (!arguments.reproducible)
+            {
+                pw.print("Downloaded date/time: ");
+                pw.println(new Date().toString());
+            }
 
             if (arguments.magic)
             {
@@ -263,7 +597,12 @@ public class Worker implements Runnable
                 pw.print("    Primary: ");
                 pw.println(modloader.primary);
             }
-            pw.println("Forge Mods: (projectId fileId: projectName fineName (URL) [Optional])");
+            if (forgeInstaller != null)
+            {
+                pw.print("Forge installer: ");
+                pw.println(forgeInstaller);
+            }
+            pw.println("Forge Mods: (projectId fileId: projectName fineName [SHA-1 [Verified by]] [Optional])");
             pw.println("----------------------------------------------------------");
             for (CurseFile mod : manifest.files)
             {
@@ -272,6 +611,17 @@ public class Worker implements Runnable
                     pw.print("!FAILED! ");
                 }
                 pw.print(String.format("%10d %10d: %-50s %-50s", mod.projectID, mod.fileID, mod.projectName, mod.fileName));
+                if (mod.sha1 != null)
+                {
+                    pw.print(" SHA-1 ");
+                    pw.print(mod.sha1);
+                }
+                // Depends on whether the mod came out of the cache or not.
+                if (mod.verified != null && !arguments.reproducible)
+                {
+                    pw.print(" Verified by ");
+                    pw.print(mod.verified);
+                }
                 if (!mod.required)
                 {
                     pw.print(" Optional");
@@ -290,22 +640,20 @@ public class Worker implements Runnable
         }
     }
 
-    private void doOutput() throws IOException, ZipException
+    private void doOutput() throws IOException
     {
-        File tmpOut = this.tmpOut;
         if (arguments.isClient)
         {
             if (arguments.client.multimc)
             {
-                tmpOut = makeMultiMCInstance();
+                makeMultiMCInstanceFile();
             }
         }
         else if (arguments.server.eula)
         {
-            FileUtils.writeStringToFile(new File(tmpOut, "eula.txt"), "#Accepted via CurseModpackDownloader v1.x\n#https://account.mojang.com/documents/minecraft_eula\n#" + new Date().toString() + "\neula=true");
+            String date = arguments.reproducible ? "" : "#" + new Date().toString() + "\n";
+            FileUtils.writeStringToFile(new File(tmpOut, "eula.txt"), "#Accepted via CurseModpackDownloader v1.x\n#https://account.mojang.com/documents/minecraft_eula\n" + date + "eula=true");
         }
-        FileUtils.copyDirectory(tmpDownload, new File(tmpOut, "mods"));
-        FileUtils.copyDirectory(new File(tmpUnzip, manifest.overrides), tmpOut);
 
         makeMarketingFile();
 
@@ -319,83 +667,147 @@ public class Worker implements Runnable
         }
     }
 
+    /**
+     * Moves (renames, if on the same file system) everything into place, nothing is copied.
+     */
     private void doOutputFolder() throws IOException
     {
-        File[] alreadyInOutput = arguments.output.listFiles();
-        // Already checked by Argument's validate. If we got here, it's a folder so never null.
-        //noinspection ConstantConditions
-        if (alreadyInOutput.length == 0)
-        {
-            // Shortcut if the output folder is empty.
-            FileUtils.copyDirectory(tmpOut, arguments.output);
-            return;
-        }
+        // tmpOut is a folder, so never null.
         //noinspection ConstantConditions
         for (File in : tmpOut.listFiles())
         {
-            if (in.isDirectory())
-            {
-                File out = new File(arguments.output, in.getName());
-                if (out.exists() && arguments.delete)
-                {
-                    FileUtils.deleteDirectory(out);
-                }
-                FileUtils.copyDirectory(in, out);
-            }
-            else
+            File out = new File(arguments.output, in.getName());
+            if (in.isDirectory() && out.exists() && arguments.delete)
             {
-                FileUtils.copyFileToDirectory(in, arguments.output);
+                FileUtils.deleteDirectory(out);
             }
+            Helper.move(in, out);
         }
+        writeState();
     }
 
-    private void doOutputZip() throws IOException, ZipException
+    /**
+     * Record what ended up where, for the next --update. Removes what the previous build put here that's no longer part of the pack.
+     */
+    private void writeState() throws IOException
     {
-        // Argument's validate would have failed if we weren't allowed to override.
-        if (arguments.output.exists())
+        BuildState state = makeState();
+        if (previousState != null)
         {
-            if (!arguments.output.delete())
+            List<String> removed = previousState.getRemoved(state, arguments.output);
+            for (String path : removed)
             {
-                throw new IOException("Could not delete existing output zip " + arguments.output);
+                File file = new File(arguments.output, path);
+                if (!arguments.quiet)
+                {
+                    logger.println("Removing " + path);
+                }
+                Files.deleteIfExists(file.toPath());
+                // Clean up folders that are now empty, but never the output folder itself.
+                for (File parent = file.getParentFile(); parent != null && !parent.equals(arguments.output) && parent.delete(); parent = parent.getParentFile()) ;
             }
+            logger.println("UPDATE: " + removed.size() + " files removed that are no longer in the pack");
         }
+        state.write(getStateFolder(arguments.output));
+    }
 
-        boolean wrap = !(arguments.rootZip || arguments.client.multimc);
+    /**
+     * Where the state of a folder build is kept. Several MultiMC instances can share an output folder, so those each keep their own.
+     * The paths in it are relative to the output folder either way.
+     */
+    private File getStateFolder(File folder)
+    {
+        return arguments.client.multimc ? new File(folder, name) : folder;
+    }
 
-        File tmpOut = this.tmpOut;
-        if (wrap)
+    /**
+     * For a folder, the files must be in place already.
+     */
+    private BuildState makeState()
+    {
+        BuildState state = new BuildState();
+        state.setForge(forgeInstalled != null ? forgeInstalled : previousState == null ? null : previousState.getForge());
+        for (CurseFile curseFile : manifest.files)
         {
-            tmpOut = new File(tmpOut.getParentFile(), name);
-            if (!this.tmpOut.renameTo(tmpOut))
-            {
-                throw new IOException("Could not rename " + this.tmpOut + " to " + tmpOut);
-            }
+            if (failedToDownload.contains(curseFile)) continue;
+            String path = keptMods.get(curseFile);
+            if (path == null && curseFile.file != null) path = getRelativeName(curseFile.file);
+            if (path == null) continue; // Failed, or an override took its place
+            File file = new File(arguments.output, path);
+            if (arguments.zipOutput) state.putMod(curseFile, path, curseFile.size, 0);
+            else state.putMod(curseFile, path, file.length(), file.lastModified());
         }
+        for (Map.Entry<String, ZipReader.Entry> e : overrideEntries.entrySet())
+        {
+            File file = new File(arguments.output, e.getKey());
+            if (arguments.zipOutput) state.putOverride(e.getKey(), e.getValue().getCrc(), e.getValue().getSize(), 0);
+            else state.putOverride(e.getKey(), e.getValue().getCrc(), file.length(), file.lastModified());
+        }
+        return state;
+    }
 
-        ZipFile outputZip = new ZipFile(arguments.output);
-        ZipParameters zipParameters = new ZipParameters();
-        zipParameters.setCompressionMethod(Zip4jConstants.COMP_DEFLATE);
-        zipParameters.setCompressionLevel(Zip4jConstants.DEFLATE_LEVEL_NORMAL);
-        zipParameters.setIncludeRootFolder(wrap);
-
-        outputZip.setRunInThread(true);
-        outputZip.addFolder(tmpOut, zipParameters);
-
-        if (!arguments.quiet)
+    /**
+     * Whatever else was in the previous zip (Forge, mostly), minus the mods and overrides that were dropped from the pack.
+     * Only if Forge wasn't installed again, otherwise the old version would be mixed in.
+     * Entries that are already in the new zip are skipped by the writer, so this goes last.
+     */
+    private CompletableFuture<Void> copyPreviousZip()
+    {
+        Set<String> dropped = previousState.getPaths();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (ZipReader.Entry entry : previousZip.getEntries())
         {
-            new Thread(new ProgressMonitorLogger(logger, outputZip.getProgressMonitor(), "Zipping"), "zipping-monitor").start();
+            if (entry.isDirectory() || !entry.getName().startsWith(zipPrefix)) continue;
+            if (dropped.contains(entry.getName().substring(zipPrefix.length()))) continue;
+            futures.add(zipWriter.addRaw(entry.getName(), previousZip, entry));
         }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
 
-        ProgressMonitor zip = outputZip.getProgressMonitor();
+    /**
+     * @return the path relative to the root of the output, for files in the tmp output folder or already in the output folder. Null for anything else.
+     */
+    private String getRelativeName(File file)
+    {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        for (File root : new File[]{tmpOut, arguments.output})
+        {
+            Path rootPath = root.toPath().toAbsolutePath().normalize();
+            if (path.startsWith(rootPath)) return rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+        }
+        return null;
+    }
 
-        // wait on all threads to finish
-        while (zip.getState() != ProgressMonitor.STATE_READY)
+    /**
+     * Most of the pack is already in the zip, add whatever is left. (Forge, info files, ...)
+     */
+    private void doOutputZip() throws IOException
+    {
+        BuildState state = makeState();
+        state.write(tmpOut);
+        if (arguments.deltaFrom != null)
         {
-            Helper.sleep(10);
+            Delta delta = new Delta(previousState.getId(), previousState.getRemoved(state, null));
+            delta.write(tmpOut);
+            logger.println("DELTA: " + delta.removed.size() + " files removed since the previous build");
         }
-        if (zip.getResult() != ProgressMonitor.RESULT_SUCCESS)
+        join(zipWriter.addAll(zipPrefix, tmpOut));
+        if (arguments.update && previousState != null && forgeInstaller == null)
         {
-            throw new IOException("Couldn't zip the output...", zip.getException());
+            join(copyPreviousZip());
+        }
+        if (error != null) return;
+        zipWriter.finish();
+        if (previousZip != null)
+        {
+            // Everything is copied, and some OSes won't replace a file that's still open.
+            previousZip.close();
+            previousZip = null;
+        }
+        zipWriter.close();
+        if (!arguments.quiet)
+        {
+            logger.println("ZIP: " + zipWriter.getStats());
         }
     }
 
@@ -418,6 +830,8 @@ public class Worker implements Runnable
         processBuilder.directory(tmpOut);
         processBuilder.redirectErrorStream(true);
         Process process = processBuilder.start();
+        forgeProcess = process;
+        if (error != null) process.destroyForcibly();
 
         // Log installer output
         if (!arguments.quiet)
@@ -431,7 +845,10 @@ public class Worker implements Runnable
         }
 
         // Wait for exit & delete installer on success
-        if (process.waitFor() == 0)
+        int exit = process.waitFor();
+        forgeProcess = null;
+        if (error != null) throw new InterruptedIOException("Forge installer was killed");
+        if (exit == 0)
         {
             if (forge.exists())
             {
@@ -457,17 +874,79 @@ public class Worker implements Runnable
         }
     }
 
-    private ProgressMonitor doUnpack() throws ZipException, IOException, ModpackException
+    /**
+     * If the server allows it, only the manifest is read (with range requests) and the pack is downloaded in the background.
+     * So the mods can be downloading while the pack is.
+     * Otherwise, the pack is downloaded first.
+     *
+     * @return the pack download, if done in the background.
+     */
+    private CompletableFuture<Void> downloadPack() throws IOException, ModpackException
     {
-        final File manifestFile = new File(tmpUnzip, "manifest.json");
+        final String url = arguments.input;
+        final File file = new File(tmp, FilenameUtils.getName(url));
+        arguments.input = file.getAbsolutePath();
+        try
+        {
+            RangeSource remote = RangeSource.probe(url);
+            if (remote != null)
+            {
+                final ZipReader.Entry remoteManifest;
+                ZipReader remoteZip = new ZipReader(url, remote);
+                try
+                {
+                    remoteManifest = readManifest(remoteZip);
+                }
+                finally
+                {
+                    remoteZip.close();
+                }
+                if (!arguments.quiet)
+                {
+                    logger.println("Read manifest from URL in " + remote.getRequests() + " requests, downloading the rest of the pack in the background: " + url);
+                }
+                return stage(() -> {
+                    downloadGroup.download(url, file);
+                    input = new ZipReader(file);
+                    ZipReader.Entry local = input.getEntry(MANIFEST);
+                    if (local == null || local.getCrc() != remoteManifest.getCrc()) throw new IOException("The pack changed while it was being downloaded: " + url);
+                    return null;
+                });
+            }
+        }
+        catch (IOException e)
+        {
+            manifest = null;
+            logger.println("Could not read the manifest from URL, downloading the pack first. (" + e.getMessage() + ")");
+        }
 
-        // Unpack input to temp folder, but do manifest first, so we can parse that ASAP
-        final ZipFile zipFile = new ZipFile(arguments.input);
-        FileHeader manifestHeader = zipFile.getFileHeader(manifestFile.getName());
-        if (manifestHeader == null) throw new IOException("There is no manifest in the zip.");
-        zipFile.extractFile(manifestHeader, tmpUnzip.getPath());
+        if (!arguments.quiet)
+        {
+            logger.println("Downloading pack from URL: " + url);
+        }
+        downloadGroup.download(url, file);
+        return CompletableFuture.completedFuture(null);
+    }
 
-        final String manifestString = FileUtils.readFileToString(manifestFile);
+    /**
+     * Parse the manifest straight from the zip.
+     *
+     * @return the manifest's entry.
+     */
+    private ZipReader.Entry readManifest(ZipReader zip) throws IOException, ModpackException
+    {
+        ZipReader.Entry manifestEntry = zip.getEntry(MANIFEST);
+        if (manifestEntry == null) throw new IOException("There is no manifest in the zip.");
+        final String manifestString;
+        InputStream in = zip.open(manifestEntry);
+        try
+        {
+            manifestString = IOUtils.toString(in, "UTF-8");
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
 
         { // Quick check for version
             JsonObject root = new JsonParser().parse(manifestString).getAsJsonObject();
@@ -482,28 +961,93 @@ public class Worker implements Runnable
             }
         }
 
-        // unzip everything else, in a thread
-        zipFile.setRunInThread(true);
-        zipFile.extractAll(tmpUnzip.getPath());
-        if (!arguments.quiet)
+        manifest = Helper.GSON.fromJson(manifestString, Manifest.class);
+        name = arguments.name != null ? arguments.name : manifest.name;
+        return manifestEntry;
+    }
+
+    /**
+     * Only the overrides are used from the input, everything else is skipped.
+     * Extracted straight into the pack (in parallel, see ZipReader), or copied into the output zip without recompressing.
+     *
+     * @return when zipping, the entries being written.
+     */
+    private CompletableFuture<Void> doOverrides() throws IOException
+    {
+        final String prefix = (manifest.overrides == null ? "overrides" : manifest.overrides).replaceAll("/+$", "") + "/";
+        final Path root = packFolder.toPath().toAbsolutePath().normalize();
+        if (zipWriter != null)
         {
-            new Thread(new ProgressMonitorLogger(logger, zipFile.getProgressMonitor(), "Unzipping"), "unzipping-monitor").start();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (ZipReader.Entry entry : input.getEntries())
+            {
+                if (!entry.getName().startsWith(prefix) || entry.getName().length() == prefix.length()) continue;
+                Path path = root.resolve(entry.getName().substring(prefix.length())).normalize();
+                if (!path.startsWith(root)) throw new ZipException("Entry " + entry.getName() + " would end up outside of the pack");
+                if (!entry.isDirectory())
+                {
+                    String name = getRelativeName(path.toFile());
+                    overrideEntries.put(name, entry);
+                    if (arguments.deltaFrom != null && previousState.isOverrideUnchanged(name, entry.getCrc(), entry.getSize())) continue;
+                }
+                futures.add(zipWriter.addRaw(getZipName(path.toFile()), input, entry));
+            }
+            if (!arguments.quiet)
+            {
+                logger.println("Copying " + futures.size() + " override entries into the zip...");
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
         }
 
-        // Do proper manifest parse, string is still from before, so we don't have to worry about the unzipping.
-        manifest = Helper.GSON.fromJson(manifestString, Manifest.class);
-        // Don't wanna start more threads than we have mods to download.
-        arguments.threads = Math.min(manifest.files.size(), arguments.threads);
-        name = arguments.name != null ? arguments.name : manifest.name;
+        // Remember what goes where, and leave out what's already in place from the previous build.
+        final Set<String> unchanged = new HashSet<>();
+        for (ZipReader.Entry entry : input.getEntries())
+        {
+            if (entry.isDirectory() || !entry.getName().startsWith(prefix) || entry.getName().length() == prefix.length()) continue;
+            String path = getRelativeName(new File(packFolder, entry.getName().substring(prefix.length())));
+            if (path == null) continue; // Outside of the pack, extractAll refuses it.
+            overrideEntries.put(path, entry);
+            if (previousState != null && previousState.isOverrideUnchanged(path, entry.getCrc(), entry.getSize(), arguments.output))
+            {
+                unchanged.add(entry.getName());
+            }
+        }
 
-        return zipFile.getProgressMonitor();
+        unzipping = input;
+        try
+        {
+            if (error != null) input.cancel();
+            if (!arguments.quiet)
+            {
+                logger.println(unchanged.isEmpty() ? "Extracting overrides..." : "Extracting overrides, " + unchanged.size() + " are unchanged...");
+            }
+            input.extractAll(packFolder, n -> n.startsWith(prefix) && n.length() > prefix.length() && !unchanged.contains(n) ? n.substring(prefix.length()) : null, Runtime.getRuntime().availableProcessors() * 2);
+            if (!arguments.quiet)
+            {
+                logger.println("Extracting overrides done: " + input.getProgress());
+            }
+        }
+        finally
+        {
+            unzipping = null;
+        }
+        return CompletableFuture.completedFuture(null);
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    private File makeMultiMCInstance() throws IOException
+    private File makeMultiMCFolder()
+    {
+        File mcFolder = new File(new File(tmpOut, name), "minecraft");
+        mcFolder.mkdirs();
+        return mcFolder;
+    }
+
+    /**
+     * Must be done after forge is resolved.
+     */
+    private void makeMultiMCInstanceFile() throws IOException
     {
         File instanceFolder = new File(tmpOut, name);
-        instanceFolder.mkdir();
 
         StringBuilder sb = new StringBuilder("InstanceType=OneSix\nIntendedVersion=").append(manifest.minecraft.version).append("\nname=").append(name);
         if (manifest.forgeBuild != null)
@@ -511,9 +1055,6 @@ public class Worker implements Runnable
             sb.append("\nForgeVersion=").append(manifest.forgeBuild.version);
         }
         FileUtils.writeStringToFile(new File(instanceFolder, "instance.cfg"), sb.append('\n').toString());
-        File mcFolder = new File(instanceFolder, "minecraft");
-        mcFolder.mkdir();
-        return mcFolder;
     }
 
     private String getForgeVersion(Manifest manifest) throws ModpackException
@@ -550,7 +1091,7 @@ public class Worker implements Runnable
         }
         try
         {
-            return Helper.parseJson(Helper.URL_FORGE_JSON, ForgeJson.class);
+            return batch != null ? batch.getForgeJson().join() : Helper.parseJson(Helper.URL_FORGE_JSON, ForgeJson.class);
         }
         catch (Exception e)
         {
@@ -588,7 +1129,18 @@ public class Worker implements Runnable
                 {
                     logger.println("Downloading forge installer " + installer.getName());
                 }
-                FileUtils.copyURLToFile(url, installer);
+                Checksums checksums = downloadGroup.download(url.toString(), installer);
+                forgeInstaller = installer.getName() + " MD5 " + checksums.getMd5();
+                if (file.md5 != null)
+                {
+                    if (!file.md5.equalsIgnoreCase(checksums.getMd5()))
+                    {
+                        //noinspection ResultOfMethodCallIgnored
+                        installer.delete();
+                        throw new IOException("Forge installer MD5 " + checksums.getMd5() + " does not match the expected " + file.md5);
+                    }
+                    forgeInstaller += " Verified by Forge's file list";
+                }
                 return installer;
             }
         }
@@ -634,10 +1186,116 @@ public class Worker implements Runnable
                     logger.println(curseFile);
                 }
             }
+
+            int verified = 0;
+            for (CurseFile curseFile : manifest.files)
+            {
+                if (curseFile.verified != null) verified++;
+            }
+            logger.println("CHECKSUMS: " + verified + " of " + manifest.files.size() + " mods verified against a known hash");
+
+            if (arguments.writeLock != null)
+            {
+                writeLock();
+            }
         }
         catch (Throwable e)
         {
-            this.error = e;
+            // If we were aborted, this is just the fallout. Keep the original cause.
+            fail(e);
+        }
+        if (watchdog != null)
+        {
+            watchdog.shutdownNow();
+        }
+        if (error != null && zipWriter != null)
+        {
+            zipWriter.discard();
+        }
+        for (ZipReader zip : new ZipReader[]{input, previousZip})
+        {
+            if (zip == null) continue;
+            try
+            {
+                zip.close();
+            }
+            catch (IOException ignored)
+            {
+                // Only read from
+            }
+        }
+        synchronized (wasted)
+        {
+            if (!wasted.isEmpty())
+            {
+                logger.println("ABORTED: " + error);
+                for (String line : wasted)
+                {
+                    logger.println(line);
+                }
+            }
+        }
+        // In a batch, these are shared. They are saved and reported once all packs are done.
+        if (sizeHints != null && batch == null)
+        {
+            try
+            {
+                sizeHints.save();
+            }
+            catch (IOException e)
+            {
+                logger.println("WARNING: Could not save the size hints: " + e.getMessage());
+            }
+        }
+        if (stageExecutor != null)
+        {
+            stageExecutor.shutdown();
+        }
+        if (downloadEngine != null && batch == null)
+        {
+            if (!arguments.quiet)
+            {
+                logger.println("HOSTS:");
+                for (String line : downloadEngine.getHostReport())
+                {
+                    logger.println(line);
+                }
+            }
+            logger.println("RETRIES: " + downloadEngine.getRetryReport());
+            if (!arguments.quiet)
+            {
+                logger.println("STAGES:");
+                for (String line : downloadEngine.getStageReport())
+                {
+                    logger.println(line);
+                }
+            }
+            downloadEngine.shutdown();
+        }
+        if (modCache != null && batch == null)
+        {
+            // Also save on error, the mods that did make it in are still valid.
+            try
+            {
+                modCache.save();
+                logger.println("CACHE: " + modCache.getStats());
+            }
+            catch (IOException e)
+            {
+                logger.println("WARNING: Could not save the mod cache index: " + e.getMessage());
+            }
+        }
+        if (urlCache != null && batch == null)
+        {
+            try
+            {
+                urlCache.save();
+                logger.println("URL CACHE: " + urlCache.getStats());
+            }
+            catch (IOException e)
+            {
+                logger.println("WARNING: Could not save the URL cache: " + e.getMessage());
+            }
         }
         done.set(true);
         if (logger != System.out)
@@ -682,92 +1340,259 @@ public class Worker implements Runnable
         return new ArrayList<>(nonForgeModloaders);
     }
 
-    private class Downloader implements Runnable
+    /**
+     * Only a complete build gets locked, otherwise using the lock would silently leave out mods.
+     */
+    private void writeLock()
     {
-        private final AtomicInteger counter;
-        private final int max;
+        if (!failedToDownload.isEmpty())
+        {
+            logger.println("WARNING: Not writing the lockfile, not all mods were downloaded.");
+            return;
+        }
+        Lockfile lock = new Lockfile();
+        for (CurseFile curseFile : manifest.files)
+        {
+            lock.put(curseFile);
+        }
+        try
+        {
+            lock.write(arguments.writeLock);
+            logger.println("LOCK: Wrote " + lock.size() + " mods to " + arguments.writeLock);
+        }
+        catch (IOException e)
+        {
+            logger.println("WARNING: Could not write the lockfile: " + e.getMessage());
+        }
+    }
 
-        Downloader(AtomicInteger counter)
+    /**
+     * A mod that doesn't match its locked hash is treated like a failed download. The bad file is removed.
+     */
+    private void checkLock(CurseFile curseFile) throws IOException
+    {
+        String locked = lockfile == null ? null : lockfile.getSha1(curseFile);
+        if (locked == null) return;
+        if (!locked.equals(curseFile.sha1))
         {
-            this.counter = counter;
-            this.max = manifest.files.size();
+            //noinspection ResultOfMethodCallIgnored
+            curseFile.file.delete();
+            throw new IOException("SHA-1 " + curseFile.sha1 + " does not match the locked " + locked);
         }
+        addVerified(curseFile, "lock");
+    }
 
-        @Override
-        public void run()
+    /**
+     * Only if the metadata came with a fingerprint, it takes an extra pass over the file.
+     */
+    private void checkFingerprint(CurseFile curseFile) throws IOException
+    {
+        if (curseFile.fingerprint < 0) return;
+        long fingerprint = Checksums.fingerprint(curseFile.file);
+        if (fingerprint != curseFile.fingerprint)
         {
-            while (error == null)
+            //noinspection ResultOfMethodCallIgnored
+            curseFile.file.delete();
+            throw new IOException("Fingerprint " + fingerprint + " does not match the expected " + curseFile.fingerprint);
+        }
+        addVerified(curseFile, "fingerprint");
+    }
+
+    private static void addVerified(CurseFile curseFile, String by)
+    {
+        curseFile.verified = curseFile.verified == null ? by : curseFile.verified + ", " + by;
+    }
+
+    /**
+     * Find out the URL and filename, or get the file from the cache.
+     *
+     * @return true if the file still needs to be downloaded.
+     */
+    private boolean resolveMod(int index, final CurseFile curseFile)
+    {
+        if (error != null) return false;
+        curseFile.sha1 = null;
+        curseFile.md5 = null;
+        curseFile.fingerprint = -1;
+        curseFile.verified = null;
+        try
+        {
+            if (modCache != null && modCache.fetch(curseFile, tmpDownload))
+            {
+                checkLock(curseFile);
+                if (!arguments.quiet)
+                {
+                    logger.printf("Mod %3d: %10d %10d '%s' '%s' From cache\n", index + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName);
+                }
+                return false;
+            }
+
+            // Locked files already have a URL, that's the whole point.
+            if (arguments.magic && curseFile.url == null)
             {
-                int nextFile = counter.getAndIncrement();
-                if (nextFile >= max) break; // work done
-                CurseFile curseFile = manifest.files.get(nextFile);
                 try
                 {
-                    if (arguments.magic)
+                    try
                     {
-                        try
-                        {
-                            try
-                            {
-                                JsonObject project = Helper.parseJson(Helper.URL_MAGIC + curseFile.projectID + ".json").getAsJsonObject();
-                                curseFile.projectName = project.get("Name").getAsString();
-                            }
-                            catch (Exception ignored)
-                            {
-                                // just for nice log anyway...
-                            }
-
-                            JsonObject file = Helper.parseJson(Helper.URL_MAGIC + curseFile.projectID + "/" + curseFile.fileID + ".json").getAsJsonObject();
-
-                            if (file.has("error"))
-                            {
-                                throw new IOException(file.get("message").getAsString());
-                            }
-
-                            curseFile.fileName = file.get("FileNameOnDisk").getAsString();
-                            String rawURL = file.get("DownloadURL").getAsString();
-                            curseFile.url = FilenameUtils.getFullPath(rawURL) + URLEncoder.encode(FilenameUtils.getName(rawURL), "UTF-8").replace("+", "%20");
-                        }
-                        catch (IllegalStateException | IOException e)
-                        {
-                            if (!arguments.quiet)
-                            {
-                                logger.printf("Mod %3d: %10d %10d No magic. Trying CurseForge... (%s: %s)\n", nextFile + 1, curseFile.projectID, curseFile.fileID, e.getClass().getName(), e.getMessage());
-                            }
-                        }
+                        JsonObject project = downloadGroup.parseJson(Helper.URL_MAGIC + curseFile.projectID + ".json").getAsJsonObject();
+                        curseFile.projectName = project.get("Name").getAsString();
                     }
-
-                    if (curseFile.url == null)
+                    catch (Exception ignored)
                     {
-                        curseFile.projectName = Helper.getProjectName(curseFile.projectID);
-                        curseFile.url = Helper.getFileURL(curseFile.projectName, curseFile.fileID);
-                        if (curseFile.url == null)
-                        {
-                            throw new IOException("File no longer available via CurseForge.");
-                        }
-                        curseFile.fileName = URLDecoder.decode(FilenameUtils.getName(curseFile.url), "UTF-8");
+                        // just for nice log anyway...
                     }
 
-                    curseFile.file = new File(tmpDownload, curseFile.fileName);
+                    JsonObject file = downloadGroup.parseJson(Helper.URL_MAGIC + curseFile.projectID + "/" + curseFile.fileID + ".json").getAsJsonObject();
 
+                    if (file.has("error"))
+                    {
+                        throw new IOException(file.get("message").getAsString());
+                    }
+
+                    curseFile.fileName = file.get("FileNameOnDisk").getAsString();
+                    String rawURL = file.get("DownloadURL").getAsString();
+                    curseFile.url = FilenameUtils.getFullPath(rawURL) + URLEncoder.encode(FilenameUtils.getName(rawURL), "UTF-8").replace("+", "%20");
+                    if (file.has("FileLength"))
+                    {
+                        curseFile.size = file.get("FileLength").getAsLong();
+                    }
+                    if (file.has("PackageFingerprint"))
+                    {
+                        curseFile.fingerprint = file.get("PackageFingerprint").getAsLong();
+                    }
+                }
+                catch (IllegalStateException | IOException e)
+                {
                     if (!arguments.quiet)
                     {
-                        logger.printf("Mod %3d: %10d %10d '%s' '%s' Url '%s'\n", nextFile + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName, curseFile.url);
+                        logger.printf("Mod %3d: %10d %10d No magic. Trying CurseForge... (%s: %s)\n", index + 1, curseFile.projectID, curseFile.fileID, e.getClass().getName(), e.getMessage());
                     }
+                }
+            }
 
-                    FileUtils.copyURLToFile(new URL(curseFile.url), curseFile.file);
+            if (curseFile.url == null)
+            {
+                downloadGroup.request(Helper.URL_CURSEFORGE_PROJECTS, permit -> {
+                    curseFile.projectName = Helper.getProjectName(curseFile.projectID);
+                    curseFile.url = Helper.getFileURL(curseFile.projectName, curseFile.fileID);
+                });
+                if (curseFile.url == null)
+                {
+                    throw new IOException("File no longer available via CurseForge.");
                 }
-                catch (IOException e)
+                curseFile.fileName = URLDecoder.decode(FilenameUtils.getName(curseFile.url), "UTF-8");
+            }
+
+            curseFile.file = new File(tmpDownload, curseFile.fileName);
+            return true;
+        }
+        catch (Exception e)
+        {
+            modFailed(index, curseFile, e);
+            return false;
+        }
+    }
+
+    /**
+     * Download a resolved file.
+     */
+    private void transferMod(int index, CurseFile curseFile)
+    {
+        if (error != null) return;
+        try
+        {
+            if (!arguments.quiet)
+            {
+                logger.printf("Mod %3d: %10d %10d '%s' '%s' Url '%s'\n", index + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName, curseFile.url);
+            }
+
+            Checksums checksums;
+            try
+            {
+                checksums = downloadGroup.download(curseFile.url, curseFile.file);
+            }
+            catch (FileNotFoundException e)
+            {
+                // 404, so whatever URL we had resolved (or cached) is no good anymore.
+                Helper.invalidateFileURL(curseFile.projectName, curseFile.fileID);
+                throw e;
+            }
+
+            curseFile.size = curseFile.file.length();
+            curseFile.sha1 = checksums.getSha1();
+            curseFile.md5 = checksums.getMd5();
+            checkLock(curseFile);
+            checkFingerprint(curseFile);
+            if (sizeHints != null)
+            {
+                sizeHints.put(curseFile, curseFile.size);
+            }
+
+            if (modCache != null)
+            {
+                try
                 {
-                    failedToDownload.add(curseFile);
-                    logger.printf("Mod %3d: %10d %10d '%s' '%s' ERROR: %s (%s)\n", nextFile + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName, e.getClass().getName(), e.getMessage());
+                    modCache.put(curseFile);
                 }
-                catch (Exception e)
+                catch (IOException e)
                 {
-                    logger.printf("Mod %3d: %10d %10d '%s' '%s' FATAL ERROR: %s (%s)\n", nextFile + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName, e.getClass().getName(), e.getMessage());
-                    throw e;
+                    logger.printf("Mod %3d: %10d %10d WARNING: Could not add to cache: %s (%s)\n", index + 1, curseFile.projectID, curseFile.fileID, e.getClass().getName(), e.getMessage());
                 }
             }
         }
+        catch (Exception e)
+        {
+            modFailed(index, curseFile, e);
+        }
+    }
+
+    /**
+     * Take over a file another pack in the batch got, as if it was just downloaded. Our own lock (if any) still has to agree.
+     */
+    private void useSharedMod(int index, CurseFile curseFile, CurseFile source)
+    {
+        if (error != null) return;
+        try
+        {
+            curseFile.projectName = source.projectName;
+            curseFile.fileName = source.fileName;
+            curseFile.url = source.url;
+            curseFile.size = source.size;
+            curseFile.sha1 = source.sha1;
+            curseFile.md5 = source.md5;
+            curseFile.fingerprint = source.fingerprint;
+            curseFile.verified = null;
+            curseFile.file = new File(tmpDownload, source.fileName);
+            Helper.link(source.file, curseFile.file);
+            checkLock(curseFile);
+            checkFingerprint(curseFile);
+            if (!arguments.quiet)
+            {
+                logger.printf("Mod %3d: %10d %10d '%s' '%s' Shared with another pack\n", index + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName);
+            }
+        }
+        catch (Exception e)
+        {
+            modFailed(index, curseFile, e);
+        }
+    }
+
+    /**
+     * IOExceptions only fail the one mod, anything else is fatal.
+     */
+    private void modFailed(int index, CurseFile curseFile, Exception e)
+    {
+        if (e instanceof IOException)
+        {
+            failedToDownload.add(curseFile);
+            logger.printf("Mod %3d: %10d %10d '%s' '%s' ERROR: %s (%s)\n", index + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName, e.getClass().getName(), e.getMessage());
+        }
+        else
+        {
+            logger.printf("Mod %3d: %10d %10d '%s' '%s' FATAL ERROR: %s (%s)\n", index + 1, curseFile.projectID, curseFile.fileID, curseFile.projectName, curseFile.fileName, e.getClass().getName(), e.getMessage());
+            // Stop the other downloads ASAP
+            fail(e);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
+        }
     }
 }
@@ -31,7 +31,7 @@ public class DeleteOnExit
     private static final List<File> fileList = new ArrayList<>();
     private static Thread thread;
 
-    public static void add(File file)
+    public static synchronized void add(File file)
     {
         fileList.add(file);
         if (thread == null) init();
@@ -44,7 +44,12 @@ public class DeleteOnExit
             @Override
             public void run()
             {
-                for (File file : fileList)
+                List<File> files;
+                synchronized (DeleteOnExit.class)
+                {
+                    files = new ArrayList<>(fileList);
+                }
+                for (File file : files)
                 {
                     try
                     {
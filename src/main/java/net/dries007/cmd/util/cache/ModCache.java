@@ -0,0 +1,365 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.cache;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import net.dries007.cmd.util.manifest.CurseFile;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Persistent, content addressed mod cache, shared across runs.
+ *
+ * Layout: 'index.json' maps 'projectID:fileID' to an entry, the actual files are stored as 'objects/xx/sha1'.
+ * Least recently used entries are evicted when the total size goes over the limit.
+ * Files are hardlinked in and out of the cache when it's on the same file system, so a hit costs no disk I/O.
+ * Those links must never end up in an output folder, where an edited mod would change the cached copy for every pack.
+ *
+ * Several processes can share the cache: objects only appear by rename, and saving merges with whatever the others
+ * saved since, while holding a lock on 'index.json.lock'. An object another process evicted is just a miss.
+ * Objects no entry points to anymore (corrupt index, crashed process) are removed once they are a day old.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class ModCache
+{
+    private static final String INDEX = "index.json";
+    private static final Object SAVE_LOCK = new Object(); // File locks are per JVM, not per thread
+    private static final long ORPHAN_AGE = 24 * 3600 * 1000; // ms, so objects another process is still adding are left alone
+
+    private final File folder;
+    private final File objects;
+    private final long maxSize;
+    private final Index index;
+
+    private int hits;
+    private int misses;
+    private int evictions;
+    private long bytesSaved;
+
+    public ModCache(File folder, long maxSize) throws IOException
+    {
+        this.folder = folder;
+        this.objects = new File(folder, "objects");
+        this.maxSize = maxSize;
+
+        //noinspection ResultOfMethodCallIgnored
+        objects.mkdirs();
+        if (!objects.isDirectory()) throw new IOException("Could not create cache folder " + objects);
+
+        Index index = null;
+        try
+        {
+            index = readIndex();
+        }
+        catch (JsonParseException ignored)
+        {
+            // Corrupt index, start over. Other processes may still be using the objects, they are cleaned up as orphans later.
+        }
+        this.index = index == null ? new Index() : index;
+    }
+
+    /**
+     * @return null if there is no index (yet).
+     */
+    private Index readIndex() throws IOException, JsonParseException
+    {
+        File indexFile = new File(folder, INDEX);
+        if (!indexFile.exists()) return null;
+        Index index = Helper.GSON.fromJson(FileUtils.readFileToString(indexFile), Index.class);
+        return index == null || index.entries == null ? null : index;
+    }
+
+    public static String getKey(CurseFile curseFile)
+    {
+        return curseFile.projectID + ":" + curseFile.fileID;
+    }
+
+    /**
+     * @return the size in bytes of the cached file, or -1 if not in the cache.
+     */
+    public long getSize(CurseFile curseFile)
+    {
+        synchronized (index)
+        {
+            Entry entry = index.entries.get(getKey(curseFile));
+            return entry == null ? -1 : entry.size;
+        }
+    }
+
+    /**
+     * Copy a mod out of the cache, if present.
+     * Sets the file, fileName and (if known) projectName and url on the curseFile.
+     *
+     * @return true if the mod was served from the cache.
+     */
+    public boolean fetch(CurseFile curseFile, File folder) throws IOException
+    {
+        String key = getKey(curseFile);
+        Entry entry;
+        synchronized (index)
+        {
+            entry = index.entries.get(key);
+            if (entry != null)
+            {
+                File object = getObject(entry.sha1);
+                if (!object.isFile() || object.length() != entry.size)
+                {
+                    // Someone messed with the cache folder, forget about it.
+                    index.entries.remove(key);
+                    entry = null;
+                }
+                else
+                {
+                    entry.lastUsed = System.currentTimeMillis();
+                }
+            }
+            if (entry == null)
+            {
+                misses++;
+                return false;
+            }
+            hits++;
+            bytesSaved += entry.size;
+        }
+
+        File file = new File(folder, entry.fileName);
+        try
+        {
+            Helper.link(getObject(entry.sha1), file);
+        }
+        catch (NoSuchFileException e)
+        {
+            // Evicted by another process in the mean time.
+            synchronized (index)
+            {
+                index.entries.remove(key);
+                hits--;
+                misses++;
+                bytesSaved -= entry.size;
+            }
+            return false;
+        }
+        curseFile.fileName = entry.fileName;
+        if (curseFile.projectName == null) curseFile.projectName = entry.projectName;
+        if (curseFile.url == null) curseFile.url = entry.url;
+        curseFile.file = file;
+        curseFile.size = entry.size;
+        curseFile.sha1 = entry.sha1;
+        return true;
+    }
+
+    /**
+     * Add a freshly downloaded mod to the cache. The file must exist.
+     * Sets the sha1 on the curseFile, if it wasn't already hashed.
+     */
+    public void put(CurseFile curseFile) throws IOException
+    {
+        if (curseFile.sha1 == null) curseFile.sha1 = Helper.hash(curseFile.file, "SHA-1");
+        String sha1 = curseFile.sha1;
+        File object = getObject(sha1);
+        if (!object.exists())
+        {
+            //noinspection ResultOfMethodCallIgnored
+            object.getParentFile().mkdirs();
+            // Link (or copy) then rename, so other processes sharing the cache never see half a file.
+            File tmp = new File(object.getParentFile(), sha1 + "." + Thread.currentThread().getId() + ".tmp");
+            Helper.link(curseFile.file, tmp);
+            Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        Entry entry = new Entry();
+        entry.sha1 = sha1;
+        entry.size = object.length();
+        entry.fileName = curseFile.fileName;
+        entry.projectName = curseFile.projectName;
+        entry.url = curseFile.url;
+        entry.lastUsed = System.currentTimeMillis();
+
+        synchronized (index)
+        {
+            index.entries.put(getKey(curseFile), entry);
+        }
+    }
+
+    /**
+     * Merge with what other processes saved, evict least recently used entries until under the size limit, then write the index to disk.
+     */
+    public void save() throws IOException
+    {
+        synchronized (SAVE_LOCK)
+        {
+            try (FileChannel channel = FileChannel.open(new File(folder, INDEX + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+            {
+                channel.lock(); // Released when the channel is closed
+                Index saved;
+                try
+                {
+                    saved = readIndex();
+                }
+                catch (JsonParseException e)
+                {
+                    saved = null; // Ours replaces it
+                }
+                String json;
+                synchronized (index)
+                {
+                    merge(saved);
+                    evict();
+                    removeOrphans();
+                    json = Helper.GSON.toJson(index);
+                }
+                File tmp = new File(folder, INDEX + ".tmp");
+                FileUtils.writeStringToFile(tmp, json);
+                Files.move(tmp.toPath(), new File(folder, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * Add what other processes put in the index since we read it, and forget about objects they evicted.
+     * For keys both have, the most recently used one wins.
+     */
+    private void merge(Index saved)
+    {
+        if (saved != null)
+        {
+            for (Map.Entry<String, Entry> e : saved.entries.entrySet())
+            {
+                Entry ours = index.entries.get(e.getKey());
+                if (ours == null || ours.lastUsed < e.getValue().lastUsed) index.entries.put(e.getKey(), e.getValue());
+            }
+        }
+        for (Iterator<Entry> i = index.entries.values().iterator(); i.hasNext(); )
+        {
+            Entry entry = i.next();
+            File object = getObject(entry.sha1);
+            if (!object.isFile() || object.length() != entry.size) i.remove();
+        }
+    }
+
+    private void evict()
+    {
+        // Multiple keys can point to the same object (re-uploads), so count every object once.
+        Map<String, Long> objectSizes = new HashMap<>();
+        for (Entry entry : index.entries.values())
+        {
+            objectSizes.put(entry.sha1, entry.size);
+        }
+        long total = 0;
+        for (long size : objectSizes.values()) total += size;
+        if (total <= maxSize) return;
+
+        List<Map.Entry<String, Entry>> lru = new ArrayList<>(index.entries.entrySet());
+        Collections.sort(lru, new Comparator<Map.Entry<String, Entry>>()
+        {
+            @Override
+            public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2)
+            {
+                return Long.compare(o1.getValue().lastUsed, o2.getValue().lastUsed);
+            }
+        });
+
+        for (Map.Entry<String, Entry> e : lru)
+        {
+            if (total <= maxSize) break;
+            index.entries.remove(e.getKey());
+            evictions++;
+            if (!isReferenced(e.getValue().sha1))
+            {
+                total -= e.getValue().size;
+                //noinspection ResultOfMethodCallIgnored
+                getObject(e.getValue().sha1).delete();
+            }
+        }
+    }
+
+    private void removeOrphans()
+    {
+        Set<String> referenced = new HashSet<>();
+        for (Entry entry : index.entries.values())
+        {
+            referenced.add(entry.sha1);
+        }
+        long old = System.currentTimeMillis() - ORPHAN_AGE;
+        File[] folders = objects.listFiles();
+        if (folders == null) return;
+        for (File folder : folders)
+        {
+            File[] files = folder.listFiles();
+            if (files == null) continue;
+            for (File file : files)
+            {
+                if (!referenced.contains(file.getName()) && file.lastModified() < old)
+                {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private boolean isReferenced(String sha1)
+    {
+        for (Entry entry : index.entries.values())
+        {
+            if (entry.sha1.equals(sha1)) return true;
+        }
+        return false;
+    }
+
+    private File getObject(String sha1)
+    {
+        return new File(new File(objects, sha1.substring(0, 2)), sha1);
+    }
+
+    public String getStats()
+    {
+        synchronized (index)
+        {
+            long size = 0;
+            for (Entry entry : index.entries.values()) size += entry.size;
+            return String.format("%d hits, %d misses, %d evicted, %.1f MB not downloaded, %d entries (%.1f / %.1f MB)",
+                    hits, misses, evictions, bytesSaved / 1048576.0, index.entries.size(), size / 1048576.0, maxSize / 1048576.0);
+        }
+    }
+
+    private static class Index
+    {
+        private Map<String, Entry> entries = new HashMap<>();
+    }
+
+    private static class Entry
+    {
+        private String sha1;
+        private long size;
+        private String fileName;
+        private String projectName;
+        private String url;
+        private long lastUsed;
+    }
+}
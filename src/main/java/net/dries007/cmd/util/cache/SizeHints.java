@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.cache;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import net.dries007.cmd.util.manifest.CurseFile;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the size of every mod ever downloaded, even after it's evicted from the mod cache.
+ * Used to schedule the biggest downloads first.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class SizeHints
+{
+    private final File file;
+    private final Map<String, Long> sizes;
+
+    public SizeHints(File file) throws IOException
+    {
+        this.file = file;
+
+        Map<String, Long> sizes = null;
+        if (file.exists())
+        {
+            try
+            {
+                sizes = Helper.GSON.fromJson(FileUtils.readFileToString(file), Index.class).sizes;
+            }
+            catch (JsonParseException ignored)
+            {
+                // Corrupt, start over.
+            }
+        }
+        this.sizes = sizes == null ? new HashMap<String, Long>() : sizes;
+    }
+
+    /**
+     * @return the size in bytes, or -1 if unknown.
+     */
+    public synchronized long get(CurseFile curseFile)
+    {
+        Long size = sizes.get(ModCache.getKey(curseFile));
+        return size == null ? -1 : size;
+    }
+
+    public synchronized void put(CurseFile curseFile, long size)
+    {
+        sizes.put(ModCache.getKey(curseFile), size);
+    }
+
+    public void save() throws IOException
+    {
+        String json;
+        synchronized (this)
+        {
+            Index index = new Index();
+            index.sizes = sizes;
+            json = Helper.GSON.toJson(index);
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileUtils.writeStringToFile(tmp, json);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class Index
+    {
+        private Map<String, Long> sizes;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.cache;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent cache of URL resolutions (project slugs, redirect targets, ...), with expiry.
+ *
+ * A null value is a negative entry (eg 'file no longer available') and expires sooner than positive ones.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class UrlCache
+{
+    private final File file;
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<String, Entry> entries;
+
+    private int hits;
+    private int misses;
+
+    public UrlCache(File file, long ttl, long negativeTtl) throws IOException
+    {
+        this.file = file;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+
+        Map<String, Entry> entries = null;
+        if (file.exists())
+        {
+            try
+            {
+                entries = Helper.GSON.fromJson(FileUtils.readFileToString(file), Index.class).entries;
+            }
+            catch (JsonParseException ignored)
+            {
+                // Corrupt, start over.
+            }
+        }
+        this.entries = entries == null ? new HashMap<String, Entry>() : entries;
+    }
+
+    /**
+     * In one go, so an entry can't expire or be invalidated between checking for it and getting its value.
+     *
+     * @return null if there is no non expired entry. Its value can still be null (negative entry).
+     */
+    public synchronized Entry lookup(String key)
+    {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis())
+        {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) misses++;
+        else hits++;
+        return entry;
+    }
+
+    public synchronized void put(String key, String value)
+    {
+        Entry entry = new Entry();
+        entry.value = value;
+        entry.expires = System.currentTimeMillis() + (value == null ? negativeTtl : ttl);
+        entries.put(key, entry);
+    }
+
+    public synchronized void invalidate(String key)
+    {
+        entries.remove(key);
+    }
+
+    public void save() throws IOException
+    {
+        String json;
+        synchronized (this)
+        {
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> i = entries.values().iterator(); i.hasNext(); )
+            {
+                if (i.next().expires < now) i.remove();
+            }
+            Index index = new Index();
+            index.entries = entries;
+            json = Helper.GSON.toJson(index);
+        }
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileUtils.writeStringToFile(tmp, json);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public synchronized String getStats()
+    {
+        return String.format("%d hits, %d misses, %d entries", hits, misses, entries.size());
+    }
+
+    private static class Index
+    {
+        private Map<String, Entry> entries;
+    }
+
+    public static class Entry
+    {
+        private String value;
+        private long expires;
+
+        /**
+         * @return null for a negative entry.
+         */
+        public String getValue()
+        {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.download;
+
+import net.dries007.cmd.Helper;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 and MD5 of a download, computed while the bytes are written, so there is no second pass over the file.
+ *
+ * CurseForge's fingerprint (murmur2 over the file without whitespace) needs the length of that stripped file up front,
+ * so it can't be done while streaming. It's a separate pass, only worth doing when there is a fingerprint to check.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class Checksums
+{
+    private final MessageDigest sha1;
+    private final MessageDigest md5;
+    private long length;
+    private String sha1Hex;
+    private String md5Hex;
+
+    Checksums()
+    {
+        try
+        {
+            sha1 = MessageDigest.getInstance("SHA-1");
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Both are required to be present in every JRE
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void update(byte[] buffer, int offset, int count)
+    {
+        sha1.update(buffer, offset, count);
+        md5.update(buffer, offset, count);
+        length += count;
+    }
+
+    /**
+     * Hash (more of) the file from disk. Only for what wasn't streamed: the start of a resumed download, or a segmented one.
+     */
+    void update(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                update(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    Checksums finish()
+    {
+        sha1Hex = Helper.toHex(sha1.digest());
+        md5Hex = Helper.toHex(md5.digest());
+        return this;
+    }
+
+    public String getSha1()
+    {
+        return sha1Hex;
+    }
+
+    public String getMd5()
+    {
+        return md5Hex;
+    }
+
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * CurseForge's file fingerprint: 32 bit murmur2 with seed 1, over the file with all tabs, newlines, carriage returns and spaces left out.
+     * Two passes, the first one only counts the bytes that are kept.
+     */
+    public static long fingerprint(File file) throws IOException
+    {
+        final int m = 0x5bd1e995;
+        byte[] buffer = new byte[64 * 1024];
+
+        long kept = 0;
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    if (!isWhitespace(buffer[i])) kept++;
+                }
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+
+        int h = 1 ^ (int) kept;
+        int k = 0;
+        int shift = 0;
+        in = new FileInputStream(file);
+        try
+        {
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    byte b = buffer[i];
+                    if (isWhitespace(b)) continue;
+                    k |= (b & 0xFF) << shift;
+                    shift += 8;
+                    if (shift == 32)
+                    {
+                        k *= m;
+                        k ^= k >>> 24;
+                        k *= m;
+                        h *= m;
+                        h ^= k;
+                        k = 0;
+                        shift = 0;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+        if (shift != 0)
+        {
+            // The tail, little endian like the rest.
+            h ^= k;
+            h *= m;
+        }
+        h ^= h >>> 13;
+        h *= m;
+        h ^= h >>> 15;
+        return h & 0xFFFFFFFFL;
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == 9 || b == 10 || b == 13 || b == 32;
+    }
+}
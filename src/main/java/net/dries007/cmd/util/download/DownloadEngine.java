@@ -0,0 +1,545 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.download;
+
+import com.google.gson.JsonElement;
+import net.dries007.cmd.Helper;
+import net.dries007.cmd.util.http.HttpStatusException;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs download tasks with many transfers in flight, with an adaptive limit on connections per host. (See HostLimiter)
+ *
+ * Two stages, each with their own pool: resolving (metadata, redirects) and downloading (the actual bytes).
+ * So a transfer can start as soon as its URL is known, and the slow small requests don't hold up the big ones.
+ * The threads spend nearly all of their time blocked on the network, so large pools are cheap.
+ * Idle threads time out, so the pools are only as big as the amount of work requires.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class DownloadEngine
+{
+    private static final long HEDGE_MIN_AGE = 3000; // ms
+    private static final int HEDGE_MIN_SAMPLES = 10;
+    private static final double HEDGE_PERCENTILE = 0.05; // Slowest 5%
+    private static final long MAX_RETRY_DELAY = 30000; // ms
+    private static final long PART_MAX_AGE = 7 * 24 * 3600 * 1000L; // ms, unclaimed part files older than this are removed
+
+    private final Stage resolver;
+    private final Stage downloader;
+    private final HostLimiter hostLimiter;
+    private final Random random = new Random();
+
+    private int retries = 0;
+    private int retryDelay = 1000;
+    private File partFolder;
+    private final Set<String> claimedParts = new HashSet<>();
+    private Segmenter segmenter;
+
+    // Only used when hedging
+    private ScheduledExecutorService hedgeMonitor;
+    private ExecutorService hedgeExecutor;
+    private final Set<Transfer> active = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+    private final List<Double> rates = new ArrayList<>();
+
+    private volatile boolean cancelled;
+
+    private final AtomicInteger retryCount = new AtomicInteger();
+    private final AtomicInteger hedgeCount = new AtomicInteger();
+    private final AtomicInteger hedgeWins = new AtomicInteger();
+
+    /**
+     * @param resolveThreads Size of the resolve stage (latency bound: small metadata requests and redirects)
+     * @param maxInFlight    Size of the download stage (bandwidth bound: the actual transfers)
+     * @param maxPerHost     Upper limit of connections to a single host, across both stages.
+     */
+    public DownloadEngine(int resolveThreads, int maxInFlight, int maxPerHost)
+    {
+        this.resolver = new Stage("Resolver", resolveThreads);
+        this.downloader = new Stage("Downloader", maxInFlight);
+        this.hostLimiter = new HostLimiter(maxPerHost);
+    }
+
+    /**
+     * Run a task on the resolve stage. Higher priority goes first.
+     */
+    public <T> CompletableFuture<T> resolve(long priority, Supplier<T> task)
+    {
+        return resolver.submit(priority, task);
+    }
+
+    /**
+     * Run a task on the download stage. Higher priority goes first.
+     */
+    public CompletableFuture<Void> submit(long priority, Runnable task)
+    {
+        return downloader.submit(priority, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * @param retries    How many times a failed download is retried.
+     * @param retryDelay Base delay before the first retry, doubles every time after. (+/- 50% jitter)
+     */
+    public void setRetries(int retries, int retryDelay)
+    {
+        this.retries = retries;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Where to keep partial downloads, so they can be resumed. If null, they are kept next to their target.
+     * Use a folder that outlives the tmp folder to resume across runs.
+     */
+    public void setPartFolder(File partFolder)
+    {
+        this.partFolder = partFolder;
+        File[] files = partFolder == null ? null : partFolder.listFiles();
+        if (files == null) return;
+        // Never resumed (the mod was dropped, or the URL changed), don't let them pile up.
+        long old = System.currentTimeMillis() - PART_MAX_AGE;
+        for (File file : files)
+        {
+            if ((file.getName().endsWith(".part") || file.getName().endsWith(".part.json")) && file.lastModified() < old)
+            {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Split files of at least threshold bytes into segments that are downloaded in parallel, if the server allows it.
+     */
+    public void enableSegmenting(long threshold, int segments)
+    {
+        if (segmenter != null) segmenter.shutdown();
+        segmenter = new Segmenter(this, threshold, segments);
+    }
+
+    /**
+     * Start a duplicate request when a transfer is in the slowest percentile, whichever copy finishes first wins.
+     */
+    public void enableHedging()
+    {
+        if (hedgeMonitor != null) return;
+        hedgeExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Hedged-Downloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        hedgeMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "Hedge-Monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        hedgeMonitor.scheduleWithFixedDelay(this::checkStragglers, 500, 500, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Blocking download of url to file, with retries. Waits for a free connection slot for the host first.
+     *
+     * @return the checksums of the downloaded file.
+     */
+    public Checksums download(final String url, final File file) throws IOException
+    {
+        return download(url, file, null);
+    }
+
+    private Checksums download(final String url, final File file, final Group group) throws IOException
+    {
+        IOException last = null;
+        for (int attempt = 0; attempt <= retries; attempt++)
+        {
+            if (isCancelled(group)) throw new InterruptedIOException("Cancelled download of " + url);
+            if (attempt != 0)
+            {
+                retryCount.incrementAndGet();
+                long delay = Math.min(MAX_RETRY_DELAY, (long) retryDelay << (attempt - 1));
+                delay = (long) (delay * (0.5 + random.nextDouble()));
+                try
+                {
+                    Thread.sleep(delay);
+                }
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedIOException("Interrupted while waiting to retry " + url);
+                }
+            }
+            try
+            {
+                return transfer(url, file, group);
+            }
+            catch (IOException e)
+            {
+                if (isCancelled(group) || !isRetryable(e)) throw e;
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    private Checksums transfer(final String url, final File file, final Group group) throws IOException
+    {
+        final Transfer transfer = new Transfer(url, file, segmenter);
+        String partName = claimPart(url, file);
+        File tmp = new File(partFolder == null ? file.getParentFile() : partFolder, partName);
+        active.add(transfer);
+        if (group != null) group.transfers.add(transfer);
+        // Don't start anything new after cancel has gone through the active set.
+        if (isCancelled(group)) transfer.abort();
+        try
+        {
+            request(url, permit -> transfer.run(tmp, true, permit));
+            double seconds = Math.max(1, System.currentTimeMillis() - transfer.start) / 1000.0;
+            synchronized (rates)
+            {
+                rates.add(transfer.bytes.get() / seconds);
+            }
+        }
+        catch (IOException e)
+        {
+            // If there is a hedged request, we only fail if that one fails too.
+            CompletableFuture<Long> hedge = transfer.close();
+            if (hedge == null) throw e;
+            try
+            {
+                hedge.join();
+                hedgeWins.incrementAndGet();
+            }
+            catch (CompletionException ignored)
+            {
+                throw e;
+            }
+        }
+        finally
+        {
+            synchronized (claimedParts)
+            {
+                claimedParts.remove(partName);
+            }
+            transfer.close();
+            active.remove(transfer);
+            if (group != null) group.transfers.remove(transfer);
+        }
+        return transfer.getChecksums();
+    }
+
+    /**
+     * The same for the same url and file name, so the next run (with a different tmp folder) can resume it.
+     * If another download (another pack in a batch) is using that one right now, a name unique to the target is used instead.
+     */
+    private String claimPart(String url, File file)
+    {
+        String name = file.getName() + "." + hash(url + '\n' + file.getName()) + ".part";
+        synchronized (claimedParts)
+        {
+            if (claimedParts.add(name)) return name;
+            name = file.getName() + "." + hash(url + '\n' + file.getAbsolutePath()) + ".part";
+            claimedParts.add(name);
+            return name;
+        }
+    }
+
+    private static String hash(String string)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(string.getBytes(StandardCharsets.UTF_8));
+            return Helper.toHex(hash).substring(0, 16);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void checkStragglers()
+    {
+        double threshold;
+        synchronized (rates)
+        {
+            if (rates.size() < HEDGE_MIN_SAMPLES) return;
+            List<Double> sorted = new ArrayList<>(rates);
+            Collections.sort(sorted);
+            threshold = sorted.get((int) (sorted.size() * HEDGE_PERCENTILE));
+        }
+        long now = System.currentTimeMillis();
+        for (final Transfer transfer : active)
+        {
+            if (transfer.isHedged() || transfer.isDone() || transfer.isAborted()) continue;
+            double seconds = (now - transfer.start) / 1000.0;
+            if (now - transfer.start < HEDGE_MIN_AGE || transfer.bytes.get() / seconds >= threshold) continue;
+
+            final File tmp = new File(transfer.target.getParentFile(), transfer.target.getName() + ".hedge");
+            transfer.hedge(() -> {
+                hedgeCount.incrementAndGet();
+                return CompletableFuture.supplyAsync(() -> {
+                    try
+                    {
+                        // Not counted against the host limit, the whole point is to not wait in line.
+                        return transfer.run(tmp, false, null);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new CompletionException(e);
+                    }
+                }, hedgeExecutor);
+            });
+        }
+    }
+
+    private static boolean isRetryable(IOException e)
+    {
+        if (e instanceof FileNotFoundException) return false; // 404
+        if (e instanceof HttpStatusException)
+        {
+            int code = ((HttpStatusException) e).getCode();
+            return code >= 500 || code == 408 || code == 429;
+        }
+        // Cancelled, but timeouts are fine to retry.
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Run a request to url's host, once there is a free connection slot for it.
+     * The outcome is used to adapt the per host concurrency.
+     *
+     * @param task gets the permit, to report the time to first byte and the bytes as they come in.
+     */
+    public void request(String url, Request task) throws IOException
+    {
+        String host = new URL(url).getHost();
+        HostLimiter.Permit permit;
+        try
+        {
+            permit = hostLimiter.acquire(host);
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+        }
+        try
+        {
+            task.run(permit);
+            permit.success();
+        }
+        catch (HttpStatusException e)
+        {
+            if (e.isThrottled()) permit.throttled();
+            else permit.neutral();
+            throw e;
+        }
+        catch (IOException e)
+        {
+            if (!isHostFailure(e)) permit.neutral();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            permit.neutral();
+            throw e;
+        }
+        finally
+        {
+            permit.close();
+        }
+    }
+
+    /**
+     * Only the connection itself failing tells us the host is overloaded. Not a 404, a full disk, or being cancelled (or losing a race).
+     */
+    private static boolean isHostFailure(IOException e)
+    {
+        return e instanceof SocketTimeoutException || e instanceof SocketException || e instanceof SSLException;
+    }
+
+    /**
+     * Helper.parseJson, but counted against the host's connection limit.
+     */
+    public JsonElement parseJson(final String url) throws IOException
+    {
+        final JsonElement[] out = new JsonElement[1];
+        request(url, permit -> out[0] = Helper.parseJson(url));
+        return out[0];
+    }
+
+    public List<String> getStageReport()
+    {
+        return Arrays.asList(resolver.getReport(), downloader.getReport());
+    }
+
+    public List<String> getHostReport()
+    {
+        return hostLimiter.getReport();
+    }
+
+    public String getRetryReport()
+    {
+        return String.format("%d retries, %d hedged requests, %d won by the hedge, %d segmented downloads", retryCount.get(), hedgeCount.get(), hedgeWins.get(), segmenter == null ? 0 : segmenter.getSegmentedCount());
+    }
+
+    /**
+     * Abort everything: kill all in flight transfers (partial files are kept for resuming, where possible) and drop all queued tasks.
+     * Queued and running tasks complete exceptionally, so nothing waits on them forever.
+     *
+     * @return what was thrown away, for reporting.
+     */
+    public String cancel()
+    {
+        cancelled = true;
+        String report = abort(active, resolver.cancel() + downloader.cancel());
+        if (segmenter != null) segmenter.shutdown();
+        if (hedgeMonitor != null)
+        {
+            hedgeMonitor.shutdownNow();
+            hedgeExecutor.shutdownNow();
+        }
+        return report;
+    }
+
+    private static String abort(Collection<Transfer> transfers, int dropped)
+    {
+        int aborted = 0;
+        long bytes = 0;
+        for (Transfer transfer : transfers)
+        {
+            if (transfer.isDone()) continue;
+            transfer.abort(); // Segments and hedged copies go with it
+            aborted++;
+            bytes += transfer.bytes.get();
+        }
+        return String.format("%d transfers aborted (%.1f MB received), %d queued tasks dropped", aborted, bytes / 1048576.0, dropped);
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    private boolean isCancelled(Group group)
+    {
+        return cancelled || (group != null && group.cancelled);
+    }
+
+    /**
+     * @return a view that keeps track of what is submitted through it, so that can be cancelled without touching anyone else's work.
+     */
+    public Group newGroup()
+    {
+        return new Group();
+    }
+
+    public void shutdown()
+    {
+        resolver.shutdown();
+        downloader.shutdown();
+        if (segmenter != null)
+        {
+            segmenter.shutdown();
+        }
+        if (hedgeMonitor != null)
+        {
+            hedgeMonitor.shutdownNow();
+            hedgeExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * The work of one pack, when several share the engine (batch). Same methods as the engine, but cancel only stops its own.
+     */
+    public class Group
+    {
+        private final Stage.Group resolveTasks = new Stage.Group();
+        private final Stage.Group downloadTasks = new Stage.Group();
+        private final Set<Transfer> transfers = Collections.newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+        private volatile boolean cancelled;
+
+        private Group()
+        {
+        }
+
+        public <T> CompletableFuture<T> resolve(long priority, Supplier<T> task)
+        {
+            return resolver.submit(priority, task, resolveTasks);
+        }
+
+        public CompletableFuture<Void> submit(long priority, Runnable task)
+        {
+            return downloader.submit(priority, () -> {
+                task.run();
+                return null;
+            }, downloadTasks);
+        }
+
+        public Checksums download(final String url, final File file) throws IOException
+        {
+            return DownloadEngine.this.download(url, file, this);
+        }
+
+        public void request(String url, Request task) throws IOException
+        {
+            if (isCancelled()) throw new InterruptedIOException("Cancelled request to " + url);
+            DownloadEngine.this.request(url, task);
+        }
+
+        public JsonElement parseJson(final String url) throws IOException
+        {
+            if (isCancelled()) throw new InterruptedIOException("Cancelled request to " + url);
+            return DownloadEngine.this.parseJson(url);
+        }
+
+        /**
+         * Abort the transfers and drop the queued tasks of this group only. Running tasks are interrupted.
+         *
+         * @return what was thrown away, for reporting.
+         */
+        public String cancel()
+        {
+            cancelled = true;
+            return abort(transfers, resolver.cancel(resolveTasks) + downloader.cancel(downloadTasks));
+        }
+
+        public boolean isCancelled()
+        {
+            return DownloadEngine.this.isCancelled(this);
+        }
+    }
+
+    public interface Request
+    {
+        void run(HostLimiter.Permit permit) throws IOException;
+    }
+}
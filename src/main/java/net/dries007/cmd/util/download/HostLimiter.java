@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Adaptive (AIMD) bound on the number of concurrent connections per host.
+ *
+ * Every host starts at a few connections and, like TCP:
+ * - Slow start: doubles the limit every window while throughput keeps going up.
+ * - Additive increase: +1 per window, as long as the extra connection actually improved throughput.
+ * - Backs off one step if throughput dropped (more connections didn't help). Throughput is averaged over the windows (EWMA),
+ *   so a single slow window doesn't count. Also backs off
+ *   if the time to first byte went way up compared to the best the host has done (requests are queueing up server side).
+ * - Multiplicative decrease: halves on 429/503, timeouts or connection errors, at most once per window.
+ *   Other errors (local disk, cancelled by us, ...) say nothing about the host.
+ * The limit never goes over the ceiling, or under 1.
+ *
+ * Bytes are counted as they arrive, so a window ends in the middle of long downloads too.
+ *
+ * @author Dries007
+ */
+public class HostLimiter
+{
+    private static final long WINDOW = 1000; // ms
+    private static final int INITIAL = 2;
+    private static final double LATENCY_FACTOR = 2; // Time to first byte this much over the best is queueing
+    private static final long LATENCY_SLACK = 50; // ms, so a few ms of jitter on a fast host doesn't count
+    private static final double THROUGHPUT_WEIGHT = 0.3; // Of the newest window in the average
+    private static final double LATENCY_DRIFT = 1.05; // Per window, so the best follows the host if it gets slower for good
+
+    private final int ceiling;
+    private final Map<String, Host> hosts = new TreeMap<>();
+
+    public HostLimiter(int ceiling)
+    {
+        this.ceiling = ceiling;
+    }
+
+    /**
+     * Blocks until there is room for another connection to host.
+     * The returned permit must always be closed, after reporting the outcome.
+     */
+    public Permit acquire(String host) throws InterruptedException
+    {
+        Host h;
+        synchronized (hosts)
+        {
+            h = hosts.get(host);
+            if (h == null) hosts.put(host, h = new Host(Math.min(INITIAL, ceiling)));
+        }
+        synchronized (h)
+        {
+            while (h.inFlight >= (int) h.limit)
+            {
+                h.wait();
+            }
+            h.inFlight++;
+        }
+        return new Permit(h);
+    }
+
+    /**
+     * @return One line per host, with the final and highest concurrency levels and some stats.
+     */
+    public List<String> getReport()
+    {
+        List<String> out = new ArrayList<>();
+        synchronized (hosts)
+        {
+            for (Map.Entry<String, Host> e : hosts.entrySet())
+            {
+                Host h = e.getValue();
+                synchronized (h)
+                {
+                    double seconds = Math.max(1, h.lastUse - h.firstUse) / 1000.0;
+                    out.add(String.format("%-40s connections: %2d (max %2d), %4d ok, %3d throttled, %3d errors, %.2f MB/s",
+                            e.getKey(), (int) h.limit, h.highest, h.completed, h.throttled, h.failed, h.totalBytes / 1048576.0 / seconds));
+                }
+            }
+        }
+        return out;
+    }
+
+    private class Host
+    {
+        private double limit;
+        private int highest;
+        private int inFlight;
+        private boolean slowStart = true;
+
+        private long windowStart = System.currentTimeMillis();
+        private long windowBytes;
+        private double averageThroughput = -1;
+        private long windowLatency;
+        private int windowLatencyCount;
+        private double bestLatency = -1;
+        private long lastDecrease;
+
+        private final long firstUse = System.currentTimeMillis();
+        private long lastUse = firstUse;
+        private long totalBytes;
+        private int completed;
+        private int throttled;
+        private int failed;
+
+        private Host(int initial)
+        {
+            this.limit = initial;
+            this.highest = initial;
+        }
+
+        private void progress(long bytes, long now)
+        {
+            lastUse = now;
+            totalBytes += bytes;
+            windowBytes += bytes;
+            update(now);
+        }
+
+        private void firstByte(long latency, long now)
+        {
+            lastUse = now;
+            windowLatency += latency;
+            windowLatencyCount++;
+            update(now);
+        }
+
+        private void update(long now)
+        {
+            if (now - windowStart < WINDOW) return;
+
+            double throughput = windowBytes / (double) (now - windowStart);
+            double latency = windowLatencyCount == 0 ? -1 : windowLatency / (double) windowLatencyCount;
+            boolean queueing = false;
+            if (latency >= 0)
+            {
+                queueing = bestLatency >= 0 && latency > bestLatency * LATENCY_FACTOR + LATENCY_SLACK;
+                bestLatency = bestLatency < 0 ? latency : Math.min(latency, bestLatency * LATENCY_DRIFT);
+            }
+            double average = averageThroughput < 0 ? throughput : THROUGHPUT_WEIGHT * throughput + (1 - THROUGHPUT_WEIGHT) * averageThroughput;
+            boolean slower = averageThroughput >= 0 && average < averageThroughput * 0.95;
+            if (queueing || slower)
+            {
+                // More connections are not making it faster anymore.
+                slowStart = false;
+                limit = Math.max(1, limit - 1);
+            }
+            else if (inFlight >= (int) limit)
+            {
+                // Only grow if we're actually using the connections we have.
+                limit = Math.min(ceiling, slowStart ? limit * 2 : limit + 1);
+            }
+            highest = Math.max(highest, (int) limit);
+            averageThroughput = average;
+            windowStart = now;
+            windowBytes = 0;
+            windowLatency = 0;
+            windowLatencyCount = 0;
+        }
+
+        private void decrease(long now)
+        {
+            lastUse = now;
+            slowStart = false;
+            if (now - lastDecrease < WINDOW) return;
+            lastDecrease = now;
+            limit = Math.max(1, limit / 2);
+            averageThroughput = -1; // Start over
+        }
+    }
+
+    /**
+     * A connection slot. Unless success, throttled or neutral is reported, closing it counts as a failure.
+     * Report the time to first byte of every request made with it, and the bytes as they come in.
+     */
+    public static class Permit implements AutoCloseable
+    {
+        private final Host host;
+        private boolean reported;
+
+        private Permit(Host host)
+        {
+            this.host = host;
+        }
+
+        /**
+         * @param latency ms between sending a request and getting the response headers.
+         */
+        public void firstByte(long latency)
+        {
+            synchronized (host)
+            {
+                host.firstByte(latency, System.currentTimeMillis());
+            }
+        }
+
+        public void progress(long bytes)
+        {
+            synchronized (host)
+            {
+                host.progress(bytes, System.currentTimeMillis());
+            }
+        }
+
+        public void success()
+        {
+            synchronized (host)
+            {
+                reported = true;
+                host.completed++;
+                host.lastUse = System.currentTimeMillis();
+                host.update(host.lastUse);
+            }
+        }
+
+        public void throttled()
+        {
+            synchronized (host)
+            {
+                reported = true;
+                host.throttled++;
+                host.decrease(System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * For errors that say nothing about the host's load, like a 404.
+         */
+        public void neutral()
+        {
+            synchronized (host)
+            {
+                reported = true;
+                host.lastUse = System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (host)
+            {
+                if (!reported)
+                {
+                    host.failed++;
+                    host.decrease(System.currentTimeMillis());
+                }
+                host.inFlight--;
+                host.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.download;
+
+import net.dries007.cmd.util.http.Http;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits large downloads into byte ranges that are fetched in parallel, into a preallocated file.
+ *
+ * The original request (which told us the size) is kept for the first range, so this costs no extra round trip.
+ * Every other range is a separate request, counted against the host's connection limit.
+ *
+ * @author Dries007
+ */
+class Segmenter
+{
+    private final DownloadEngine engine;
+    private final long threshold;
+    private final int segments;
+    private final ExecutorService executor;
+    private final AtomicInteger segmentedCount = new AtomicInteger();
+
+    Segmenter(DownloadEngine engine, long threshold, int segments)
+    {
+        this.engine = engine;
+        this.threshold = threshold;
+        this.segments = segments;
+        final AtomicInteger threadCounter = new AtomicInteger();
+        // Separate pool, segments must never wait in line behind the downloads that are waiting on them.
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Segment-Downloader-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param con A 200 response to a plain GET.
+     */
+    boolean canSegment(HttpURLConnection con)
+    {
+        return con.getContentLengthLong() >= threshold && "bytes".equalsIgnoreCase(con.getHeaderField("Accept-Ranges"));
+    }
+
+    /**
+     * Download the whole file into the preallocated file. Uses the (already opened) input stream for the first segment.
+     *
+     * @param validator ETag or Last-Modified, to make sure all ranges come from the same version of the file.
+     * @param permit    the slot of the original request, used for the first segment and any taken over.
+     */
+    void download(final Transfer transfer, InputStream first, RandomAccessFile raf, long length, final String validator, HostLimiter.Permit permit) throws IOException
+    {
+        segmentedCount.incrementAndGet();
+        raf.setLength(length);
+        final FileChannel channel = raf.getChannel();
+
+        long size = (length + segments - 1) / segments;
+        List<Future<?>> futures = new ArrayList<>(segments - 1);
+        final List<AtomicBoolean> claims = new ArrayList<>(segments - 1);
+        for (long from = size; from < length; from += size)
+        {
+            final long start = from;
+            final long end = Math.min(length, from + size) - 1;
+            final AtomicBoolean claimed = new AtomicBoolean();
+            claims.add(claimed);
+            futures.add(executor.submit(() -> {
+                engine.request(transfer.url, p -> {
+                    if (claimed.compareAndSet(false, true)) fetch(transfer, validator, start, end, channel, p);
+                });
+                return null;
+            }));
+        }
+
+        IOException error = null;
+        try
+        {
+            copy(transfer, first, channel, 0, size, permit);
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        finally
+        {
+            // We only wanted the first part, the connection can't be reused.
+            IOUtils.closeQuietly(first);
+        }
+
+        // Take over the segments that are still waiting for a connection, with the slot our first one just freed up.
+        // Otherwise, if every slot of the host is held by a segmented download, they all wait on each other forever.
+        for (int i = 0; i < claims.size() && error == null; i++)
+        {
+            if (!claims.get(i).compareAndSet(false, true)) continue;
+            // Still waiting for a permit, it has nothing left to do.
+            futures.get(i).cancel(true);
+            long start = (i + 1) * size;
+            try
+            {
+                fetch(transfer, validator, start, Math.min(length, start + size) - 1, channel, permit);
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+        }
+
+        for (Future<?> future : futures)
+        {
+            try
+            {
+                if (error != null) future.cancel(true);
+                else future.get();
+            }
+            catch (InterruptedException e)
+            {
+                error = new InterruptedIOException("Interrupted while waiting on segments of " + transfer.url);
+            }
+            catch (ExecutionException e)
+            {
+                error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            catch (CancellationException ignored)
+            {
+                // Because of an earlier error, or taken over
+            }
+        }
+        if (error != null) throw error;
+    }
+
+    private long fetch(Transfer transfer, String validator, long start, long end, FileChannel channel, HostLimiter.Permit permit) throws IOException
+    {
+        HttpURLConnection con = transfer.open();
+        InputStream in = null;
+        try
+        {
+            con.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            if (validator != null) con.setRequestProperty("If-Range", validator);
+            long sent = System.currentTimeMillis();
+            int code = con.getResponseCode();
+            if (permit != null) permit.firstByte(System.currentTimeMillis() - sent);
+            Http.checkStatus(con, transfer.url);
+            if (code != HttpURLConnection.HTTP_PARTIAL || Http.getRangeStart(con) != start)
+            {
+                con.disconnect();
+                throw new IOException("Server stopped honouring range requests (or the file changed) for " + transfer.url);
+            }
+            in = con.getInputStream();
+            return copy(transfer, in, channel, start, end - start + 1, permit);
+        }
+        catch (IOException e)
+        {
+            // A killed connection shows up as some random socket error.
+            if ((transfer.isAborted() || transfer.isDone()) && !(e instanceof InterruptedIOException)) throw new InterruptedIOException("Cancelled segment of " + transfer.url);
+            throw e;
+        }
+        finally
+        {
+            transfer.release(con);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static long copy(Transfer transfer, InputStream in, FileChannel channel, long position, long count, HostLimiter.Permit permit) throws IOException
+    {
+        byte[] buffer = new byte[16 * 1024];
+        long done = 0;
+        while (done < count)
+        {
+            if (transfer.isDone() || transfer.isAborted() || Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedIOException("Cancelled segment of " + transfer.url);
+            }
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - done));
+            if (n == -1) throw new IOException("Segment ended early, got " + done + " of " + count + " bytes from " + transfer.url);
+            ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+            while (bb.hasRemaining())
+            {
+                channel.write(bb, position + done + (n - bb.remaining()));
+            }
+            done += n;
+            transfer.bytes.addAndGet(n);
+            if (permit != null) permit.progress(n);
+        }
+        return done;
+    }
+
+    int getSegmentedCount()
+    {
+        return segmentedCount.get();
+    }
+
+    void shutdown()
+    {
+        executor.shutdownNow();
+    }
+}
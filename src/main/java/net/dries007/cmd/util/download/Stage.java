@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.download;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A pool of threads with a priority queue (highest first, FIFO on ties) and some metrics.
+ *
+ * @author Dries007
+ */
+public class Stage
+{
+    private final String name;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong firstStart = new AtomicLong();
+    private final AtomicLong lastEnd = new AtomicLong();
+    private final AtomicInteger peakQueue = new AtomicInteger();
+
+    public Stage(String name, int threads)
+    {
+        this.name = name;
+        this.threads = threads;
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), r -> {
+            Thread thread = new Thread(r, name + "-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public <T> CompletableFuture<T> submit(long priority, Supplier<T> task)
+    {
+        return submit(priority, task, null);
+    }
+
+    /**
+     * @param group if not null, the task can be cancelled along with the rest of the group.
+     */
+    public <T> CompletableFuture<T> submit(long priority, Supplier<T> task, Group group)
+    {
+        Task<T> t = new Task<>(priority, sequence.getAndIncrement(), task, group);
+        if (group != null)
+        {
+            group.tasks.add(t);
+            if (group.cancelled)
+            {
+                group.tasks.remove(t);
+                t.future.completeExceptionally(new CancellationException(name + " stage was cancelled"));
+                return t.future;
+            }
+        }
+        try
+        {
+            executor.execute(t);
+        }
+        catch (RejectedExecutionException e)
+        {
+            t.future.completeExceptionally(new CancellationException(name + " stage was cancelled"));
+            return t.future;
+        }
+        int queued = executor.getQueue().size();
+        int peak;
+        while (queued > (peak = peakQueue.get()) && !peakQueue.compareAndSet(peak, queued)) ;
+        return t.future;
+    }
+
+    public String getReport()
+    {
+        long wall = lastEnd.get() - firstStart.get();
+        return String.format("%-9s %3d threads, %4d tasks, avg %6.1f ms per task, peak queue %4d, %6.1f s wall",
+                name, threads, completed.get(), completed.get() == 0 ? 0 : busyNanos.get() / 1e6 / completed.get(), peakQueue.get(), Math.max(0, wall) / 1000.0);
+    }
+
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Interrupt the running tasks and fail the queued ones.
+     *
+     * @return the number of queued tasks that never got to run.
+     */
+    public int cancel()
+    {
+        List<Runnable> dropped = executor.shutdownNow();
+        for (Runnable r : dropped)
+        {
+            ((Task<?>) r).future.completeExceptionally(new CancellationException(name + " stage was cancelled"));
+        }
+        return dropped.size();
+    }
+
+    /**
+     * Like cancel, but only for the tasks of one group. The rest keeps going.
+     *
+     * @return the number of queued tasks of the group that never got to run.
+     */
+    public int cancel(Group group)
+    {
+        group.cancelled = true;
+        int dropped = 0;
+        for (Task<?> t : group.tasks)
+        {
+            if (executor.remove(t))
+            {
+                dropped++;
+                group.tasks.remove(t);
+                t.future.completeExceptionally(new CancellationException(name + " stage was cancelled"));
+            }
+            else
+            {
+                t.interrupt();
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Tasks that belong together, and can be cancelled without touching anyone else's. (One pack in a batch.)
+     */
+    public static class Group
+    {
+        private final Set<Stage.Task<?>> tasks = Collections.newSetFromMap(new ConcurrentHashMap<Stage.Task<?>, Boolean>());
+        private volatile boolean cancelled;
+    }
+
+    private class Task<T> implements Runnable, Comparable<Task<?>>
+    {
+        private final long priority;
+        private final long sequence;
+        private final Supplier<T> task;
+        private final Group group;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Thread thread;
+
+        private Task(long priority, long sequence, Supplier<T> task, Group group)
+        {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+            this.group = group;
+        }
+
+        /**
+         * If it's running right now. Only the task itself, the thread goes back into the pool afterwards.
+         */
+        private synchronized void interrupt()
+        {
+            if (thread != null) thread.interrupt();
+        }
+
+        @Override
+        public void run()
+        {
+            long start = System.nanoTime();
+            firstStart.compareAndSet(0, System.currentTimeMillis());
+            synchronized (this)
+            {
+                thread = Thread.currentThread();
+            }
+            try
+            {
+                // Cancelled between being queued and being taken off the queue.
+                if (group != null && group.cancelled) throw new CancellationException(name + " stage was cancelled");
+                future.complete(task.get());
+            }
+            catch (Throwable e)
+            {
+                future.completeExceptionally(e);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    thread = null;
+                    //noinspection ResultOfMethodCallIgnored
+                    Thread.interrupted(); // Don't leave an interrupt meant for this task on the pool's thread
+                }
+                if (group != null) group.tasks.remove(this);
+                busyNanos.addAndGet(System.nanoTime() - start);
+                completed.incrementAndGet();
+                lastEnd.accumulateAndGet(System.currentTimeMillis(), Math::max);
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> o)
+        {
+            if (priority != o.priority) return Long.compare(o.priority, priority);
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.download;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import net.dries007.cmd.util.http.Http;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A single file download, which can be raced by a duplicate (hedged) request, and resumed if interrupted.
+ * Every copy writes to its own part file, the first one to finish gets renamed to the target.
+ *
+ * @author Dries007
+ */
+public class Transfer
+{
+    final String url;
+    final File target;
+    final long start = System.currentTimeMillis();
+    final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final Set<HttpURLConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<HttpURLConnection, Boolean>());
+    private volatile boolean aborted;
+    private CompletableFuture<Long> hedge;
+    private boolean closed;
+    private volatile Checksums checksums;
+
+    private final Segmenter segmenter;
+
+    /**
+     * @param segmenter null if large files should not be split up.
+     */
+    Transfer(String url, File target, Segmenter segmenter)
+    {
+        this.url = url;
+        this.target = target;
+        this.segmenter = segmenter;
+    }
+
+    /**
+     * @return true if some copy of this transfer completed and renamed to the target already.
+     */
+    boolean isDone()
+    {
+        return done.get();
+    }
+
+    boolean isAborted()
+    {
+        return aborted;
+    }
+
+    /**
+     * Kill every connection of every copy of this transfer, blocked reads included.
+     */
+    void abort()
+    {
+        aborted = true;
+        for (HttpURLConnection con : connections)
+        {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Open a connection that is killed if the transfer is aborted. Pass it to release when done.
+     */
+    HttpURLConnection open() throws IOException
+    {
+        if (aborted) throw new InterruptedIOException("Aborted download of " + url);
+        HttpURLConnection con = Http.open(url, "GET");
+        connections.add(con);
+        return con;
+    }
+
+    void release(HttpURLConnection con)
+    {
+        if (con != null) connections.remove(con);
+    }
+
+    /**
+     * @return the checksums of whichever copy won, null if none completed (yet).
+     */
+    Checksums getChecksums()
+    {
+        return checksums;
+    }
+
+    synchronized boolean isHedged()
+    {
+        return hedge != null;
+    }
+
+    /**
+     * Start a hedged copy, unless the primary is already done (or has given up).
+     */
+    synchronized void hedge(Supplier<CompletableFuture<Long>> starter)
+    {
+        if (closed || hedge != null || done.get()) return;
+        hedge = starter.get();
+    }
+
+    /**
+     * Prevent any more hedged copies from starting.
+     *
+     * @return the hedged copy, if there is one.
+     */
+    synchronized CompletableFuture<Long> close()
+    {
+        closed = true;
+        return hedge;
+    }
+
+    /**
+     * Download into part, then rename to the target if no other copy beat us to it.
+     * If part already exists (previous attempt or run) and the server supports it, only the rest is downloaded.
+     * A sidecar file (part + '.json') remembers the validators, so we never glue together two different versions.
+     * The checksums are computed on the way in, a resumed part is read back once to catch up.
+     *
+     * @param resumable if false, the part file is always deleted afterwards, and progress is not counted. (For hedged copies.)
+     * @param permit    the connection slot to report to, null if not counted against the host limit.
+     * @return the number of bytes downloaded.
+     */
+    long run(File part, boolean resumable, HostLimiter.Permit permit) throws IOException
+    {
+        long total = attempt(part, resumable, true, permit);
+        // The server answered with a different range than the one we asked for. The part is gone now, start over.
+        return total >= 0 ? total : attempt(part, resumable, false, permit);
+    }
+
+    /**
+     * @param resume if false, an existing part file is not resumed but overwritten.
+     * @return -1 if the server sent a range that doesn't continue the part file. (Only when resuming.)
+     */
+    private long attempt(File part, boolean resumable, boolean resume, HostLimiter.Permit permit) throws IOException
+    {
+        //noinspection ResultOfMethodCallIgnored
+        part.getParentFile().mkdirs();
+        File sidecar = new File(part.getParentFile(), part.getName() + ".json");
+        PartInfo info = resumable && resume ? PartInfo.read(sidecar, part, url) : null;
+
+        InputStream in = null;
+        OutputStream out = null;
+        boolean keep = false;
+        long total = 0;
+        HttpURLConnection con = null;
+        Checksums sums = new Checksums();
+        try
+        {
+            con = open();
+            if (info != null)
+            {
+                con.setRequestProperty("Range", "bytes=" + part.length() + "-");
+                // If-Range: If the file changed, the server sends all of it (200) instead.
+                if (info.etag != null) con.setRequestProperty("If-Range", info.etag);
+                else if (info.lastModified != null) con.setRequestProperty("If-Range", info.lastModified);
+            }
+
+            long sent = System.currentTimeMillis();
+            int code = con.getResponseCode();
+            if (permit != null) permit.firstByte(System.currentTimeMillis() - sent);
+            if (info != null && code == 416 && info.length == part.length())
+            {
+                // We already had all of it.
+                Http.release(con);
+                sums.update(part);
+            }
+            else
+            {
+                Http.checkStatus(con, url);
+                if (code == HttpURLConnection.HTTP_PARTIAL && (info == null || part.length() != Http.getRangeStart(con)))
+                {
+                    // Never write a range as if it were the start of the file.
+                    con.disconnect();
+                    if (info == null) throw new IOException("Got a partial response without asking for one from " + url);
+                    return -1;
+                }
+                boolean append = info != null && code == HttpURLConnection.HTTP_PARTIAL;
+
+                info = new PartInfo();
+                info.url = url;
+                info.etag = con.getHeaderField("ETag");
+                info.lastModified = con.getHeaderField("Last-Modified");
+                long length = con.getContentLengthLong();
+                info.length = length < 0 ? -1 : (append ? part.length() + length : length);
+
+                if (resumable && !append && segmenter != null && segmenter.canSegment(con))
+                {
+                    // Preallocated file with holes, so it can't be resumed.
+                    RandomAccessFile raf = new RandomAccessFile(part, "rw");
+                    try
+                    {
+                        segmenter.download(this, con.getInputStream(), raf, length, info.etag != null ? info.etag : info.lastModified, permit);
+                    }
+                    finally
+                    {
+                        raf.close();
+                    }
+                    total = length;
+                    // Written out of order, so hashed afterwards.
+                    sums.update(part);
+                }
+                else
+                {
+                    // Only worth keeping if there is a way to validate it next time.
+                    keep = resumable && (info.etag != null || info.lastModified != null);
+                    if (keep) FileUtils.writeStringToFile(sidecar, Helper.GSON.toJson(info));
+
+                    if (append) sums.update(part);
+                    in = con.getInputStream();
+                    out = new FileOutputStream(part, append);
+                    byte[] buffer = new byte[16 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) != -1)
+                    {
+                        if (done.get()) throw new InterruptedIOException("Lost race to other copy of " + url);
+                        if (aborted) throw new InterruptedIOException("Aborted download of " + url);
+                        out.write(buffer, 0, n);
+                        sums.update(buffer, 0, n);
+                        total += n;
+                        if (resumable) bytes.addAndGet(n);
+                        if (permit != null) permit.progress(n);
+                    }
+                    out.close();
+                }
+            }
+
+            if (info.length >= 0 && part.length() != info.length)
+            {
+                throw new IOException("Incomplete download, got " + part.length() + " of " + info.length + " bytes from " + url);
+            }
+            keep = false;
+            if (!done.compareAndSet(false, true)) throw new InterruptedIOException("Lost race to other copy of " + url);
+            checksums = sums.finish();
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return total;
+        }
+        catch (IOException e)
+        {
+            // A killed connection shows up as some random socket error.
+            if (aborted && !(e instanceof InterruptedIOException)) throw new InterruptedIOException("Aborted download of " + url);
+            throw e;
+        }
+        finally
+        {
+            release(con);
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(in);
+            if (!keep || done.get())
+            {
+                //noinspection ResultOfMethodCallIgnored
+                part.delete();
+                //noinspection ResultOfMethodCallIgnored
+                sidecar.delete();
+            }
+        }
+    }
+
+    private static class PartInfo
+    {
+        private String url;
+        private String etag;
+        private String lastModified;
+        private long length;
+
+        /**
+         * @return null if there is nothing (valid) to resume from.
+         */
+        private static PartInfo read(File sidecar, File part, String url)
+        {
+            if (!part.exists() || !sidecar.exists()) return null;
+            try
+            {
+                PartInfo info = Helper.GSON.fromJson(FileUtils.readFileToString(sidecar), PartInfo.class);
+                if (info != null && url.equals(info.url) && part.length() > 0) return info;
+            }
+            catch (IOException | JsonParseException ignored)
+            {
+                // Start over
+            }
+            return null;
+        }
+    }
+}
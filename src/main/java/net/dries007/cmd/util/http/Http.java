@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.http;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * All HTTP traffic goes through here.
+ *
+ * This relies on the JVM's keep-alive connection pool (per host), which only takes a connection back if the
+ * response body was read to the end and closed, and the connection was not disconnect()ed. So that's what we do.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class Http
+{
+    public static final int MAX_REDIRECTS = 10;
+
+    private static int connectTimeout = 15000;
+    private static int readTimeout = 60000;
+
+    private Http() {}
+
+    /**
+     * Must be called before the first connection is made, the JVM only reads the pool size once.
+     *
+     * @param connectTimeout in ms
+     * @param readTimeout    in ms
+     * @param maxConnections max idle connections to keep alive per host
+     */
+    public static void configure(int connectTimeout, int readTimeout, int maxConnections)
+    {
+        Http.connectTimeout = connectTimeout;
+        Http.readTimeout = readTimeout;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(5, maxConnections)));
+    }
+
+    public static HttpURLConnection open(String url, String method) throws IOException
+    {
+        HttpURLConnection con = (HttpURLConnection) new URL(url.replace(" ", "%20")).openConnection();
+        con.setRequestMethod(method);
+        con.setConnectTimeout(connectTimeout);
+        con.setReadTimeout(readTimeout);
+        return con;
+    }
+
+    /**
+     * Follows redirects (including http -> https, which HttpURLConnection won't) using HEAD requests where possible.
+     * If the server can't be reached, the URL as far as it got is returned.
+     */
+    public static String getFinalURL(String url) throws IOException
+    {
+        return getFinalURL(url, false);
+    }
+
+    /**
+     * getFinalURL, but connection problems and error responses are thrown instead of ending the redirect chain,
+     * like openStream does: 404 as a FileNotFoundException, others as an HttpStatusException.
+     * For when the result is kept around, and 'not redirected' has to mean the server said so.
+     */
+    public static String getFinalURLStrict(String url) throws IOException
+    {
+        return getFinalURL(url, true);
+    }
+
+    private static String getFinalURL(String url, boolean strict) throws IOException
+    {
+        for (int i = 0; i < MAX_REDIRECTS; i++)
+        {
+            url = url.replace(" ", "%20");
+            try
+            {
+                URL objURL = new URL(url);
+                HttpURLConnection con = open(url, "HEAD");
+                con.setInstanceFollowRedirects(false);
+                int code = con.getResponseCode();
+                // Some servers don't do HEAD.
+                if (code == HttpURLConnection.HTTP_BAD_METHOD || code == HttpURLConnection.HTTP_NOT_IMPLEMENTED)
+                {
+                    release(con);
+                    con = open(url, "GET");
+                    con.setInstanceFollowRedirects(false);
+                    code = con.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_OK)
+                    {
+                        // Don't read what could be an entire file just to keep a connection.
+                        con.disconnect();
+                        return url;
+                    }
+                }
+                if (strict && code >= 400)
+                {
+                    checkStatus(con, url);
+                }
+                String newUrl = null;
+                if (code >= 300 && code < 400)
+                {
+                    newUrl = con.getHeaderField("Location");
+                }
+                release(con);
+                if (code == HttpURLConnection.HTTP_OK)
+                {
+                    return url;
+                }
+                String next;
+                if (newUrl == null)
+                {
+                    next = url.replace("?cookieTest=1", "");
+                }
+                else if (newUrl.charAt(0) == '/')
+                {
+                    next = objURL.getProtocol() + "://" + objURL.getAuthority() + newUrl;
+                }
+                else
+                {
+                    next = newUrl;
+                }
+                // Nowhere else to go, asking again won't change the answer.
+                if (next.equals(url)) return url;
+                url = next;
+            }
+            catch (HttpStatusException | FileNotFoundException e)
+            {
+                throw e;
+            }
+            catch (IOException e)
+            {
+                if (strict) throw e;
+                return url.replace("?cookieTest=1", "");
+            }
+        }
+        throw new IOException("Redirect limit (" + MAX_REDIRECTS + ") exceeded on url: " + url);
+    }
+
+    /**
+     * Open a stream to read the body of url. Redirects are followed.
+     * 404 results in a FileNotFoundException, other errors in an IOException.
+     */
+    public static InputStream openStream(String url) throws IOException
+    {
+        HttpURLConnection con = open(url, "GET");
+        checkStatus(con, url);
+        return con.getInputStream();
+    }
+
+    /**
+     * Throw the appropriate exception for non 2xx responses, after releasing the connection.
+     */
+    public static void checkStatus(HttpURLConnection con, String url) throws IOException
+    {
+        int code = con.getResponseCode();
+        if (code / 100 != 2)
+        {
+            release(con);
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) throw new FileNotFoundException(url);
+            throw new HttpStatusException(code, url);
+        }
+    }
+
+    /**
+     * Download url to file, creating the parent folders if required.
+     */
+    public static void download(String url, File file) throws IOException
+    {
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        InputStream in = null;
+        OutputStream out = null;
+        try
+        {
+            in = openStream(url);
+            out = new FileOutputStream(file);
+            IOUtils.copy(in, out);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Read and close whatever body there is, so the connection can go back into the pool.
+     */
+    public static void release(HttpURLConnection con)
+    {
+        InputStream is = null;
+        try
+        {
+            is = con.getResponseCode() >= 400 ? con.getErrorStream() : con.getInputStream();
+            if (is != null)
+            {
+                byte[] buffer = new byte[4096];
+                //noinspection StatementWithEmptyBody
+                while (is.read(buffer) != -1) ;
+            }
+        }
+        catch (IOException ignored)
+        {
+            // Connection can't be reused, the JVM will close it.
+        }
+        finally
+        {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * @return the start of the range in the Content-Range header of a 206 response, or -1.
+     */
+    public static long getRangeStart(HttpURLConnection con)
+    {
+        // Content-Range: bytes 100-199/200
+        String range = con.getHeaderField("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) return -1;
+        try
+        {
+            return Long.parseLong(range.substring(6, range.indexOf('-')));
+        }
+        catch (NumberFormatException | StringIndexOutOfBoundsException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.http;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/**
+ * Non 2xx response, other than 404. (That's a FileNotFoundException, like HttpURLConnection does it.)
+ *
+ * @author Dries007
+ */
+public class HttpStatusException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int code;
+
+    public HttpStatusException(int code, String url)
+    {
+        super("HTTP " + code + " on url: " + url);
+        this.code = code;
+    }
+
+    public int getCode()
+    {
+        return code;
+    }
+
+    /**
+     * @return true if the server is telling us to slow down.
+     */
+    public boolean isThrottled()
+    {
+        return code == 429 || code == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+}
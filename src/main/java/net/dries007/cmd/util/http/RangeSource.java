@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.http;
+
+import net.dries007.cmd.util.zip.ZipReader;
+import org.apache.commons.io.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+
+/**
+ * A remote file, read with HTTP range requests. Used to read the manifest of a pack without downloading all of it.
+ *
+ * Every request fetches at least 64 KB, and the last response is kept, so reading the central directory and a small entry
+ * only takes a couple of requests.
+ *
+ * @author Dries007
+ */
+public class RangeSource implements ZipReader.Source
+{
+    private static final int MIN_FETCH = 64 * 1024;
+
+    private final String url;
+    private final long length;
+    private final String validator;
+
+    private long cacheStart = -1;
+    private byte[] cache;
+    private int requests;
+
+    private RangeSource(String url, long length, String validator)
+    {
+        this.url = url;
+        this.length = length;
+        this.validator = validator;
+    }
+
+    /**
+     * @return null if the server doesn't do range requests (or doesn't tell us the length).
+     */
+    public static RangeSource probe(String url) throws IOException
+    {
+        HttpURLConnection con = Http.open(url, "HEAD");
+        Http.checkStatus(con, url);
+        long length = con.getContentLengthLong();
+        boolean ranges = "bytes".equalsIgnoreCase(con.getHeaderField("Accept-Ranges"));
+        String validator = con.getHeaderField("ETag");
+        if (validator == null) validator = con.getHeaderField("Last-Modified");
+        Http.release(con);
+        return length > 0 && ranges ? new RangeSource(url, length, validator) : null;
+    }
+
+    @Override
+    public long size()
+    {
+        return length;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException
+    {
+        if (position >= length) return -1;
+        if (cache == null || position < cacheStart || position >= cacheStart + cache.length)
+        {
+            fetch(position, Math.max(dst.remaining(), MIN_FETCH));
+        }
+        int offset = (int) (position - cacheStart);
+        int n = Math.min(dst.remaining(), cache.length - offset);
+        dst.put(cache, offset, n);
+        return n;
+    }
+
+    private void fetch(long position, int count) throws IOException
+    {
+        long end = Math.min(length, position + count) - 1;
+        HttpURLConnection con = Http.open(url, "GET");
+        con.setRequestProperty("Range", "bytes=" + position + "-" + end);
+        // If the file changed, the server sends all of it (200) instead.
+        if (validator != null) con.setRequestProperty("If-Range", validator);
+        Http.checkStatus(con, url);
+        if (con.getResponseCode() != HttpURLConnection.HTTP_PARTIAL || Http.getRangeStart(con) != position)
+        {
+            con.disconnect();
+            throw new IOException("Server stopped honouring range requests (or the file changed) for " + url);
+        }
+        requests++;
+        byte[] data = new byte[(int) (end - position + 1)];
+        InputStream in = con.getInputStream();
+        try
+        {
+            new DataInputStream(in).readFully(data);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+        cache = data;
+        cacheStart = position;
+    }
+
+    public synchronized int getRequests()
+    {
+        return requests;
+    }
+
+    @Override
+    public void close()
+    {
+        cache = null;
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.manifest;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import net.dries007.cmd.util.zip.ZipReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * What a build put in an output folder or zip, so the next build can update it instead of starting over.
+ *
+ * All paths are relative to the output folder (or the pack's folder in the zip), with '/' as separator.
+ * For folders, the size and modification time of every file are recorded as they were right after the build,
+ * so anything that was changed since (by hand, or by the server) is noticed.
+ * In a zip the state is one of the entries, so it can't get out of sync with the rest.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class BuildState
+{
+    public static final String FILE_NAME = "." + Helper.NAME + "-state.json";
+
+    private String forge;
+    private Map<String, ModState> mods = new TreeMap<>(); // Keyed by 'projectID:fileID'
+    private Map<String, OverrideState> overrides = new TreeMap<>(); // Keyed by path
+
+    /**
+     * @return null if there is no (valid) state file in the folder.
+     */
+    public static BuildState read(File folder) throws IOException
+    {
+        File file = new File(folder, FILE_NAME);
+        if (!file.isFile()) return null;
+        return parse(FileUtils.readFileToString(file));
+    }
+
+    /**
+     * @param prefix the folder of the pack in the zip, empty or ending in '/'.
+     * @return null if there is no (valid) state in the zip.
+     */
+    public static BuildState read(ZipReader zip, String prefix) throws IOException
+    {
+        ZipReader.Entry entry = zip.getEntry(prefix + FILE_NAME);
+        if (entry == null) return null;
+        InputStream in = zip.open(entry);
+        try
+        {
+            return parse(IOUtils.toString(in, "UTF-8"));
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static BuildState parse(String json)
+    {
+        try
+        {
+            BuildState state = Helper.GSON.fromJson(json, BuildState.class);
+            if (state == null || state.mods == null || state.overrides == null) return null;
+            return state;
+        }
+        catch (JsonParseException e)
+        {
+            return null;
+        }
+    }
+
+    public void write(File folder) throws IOException
+    {
+        File file = new File(folder, FILE_NAME);
+        File tmp = new File(folder, FILE_NAME + ".tmp");
+        FileUtils.writeStringToFile(tmp, Helper.GSON.toJson(this));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String getKey(CurseFile curseFile)
+    {
+        return curseFile.projectID + ":" + curseFile.fileID;
+    }
+
+    private static boolean isUntouched(File file, long size, long lastModified)
+    {
+        return file.isFile() && file.length() == size && file.lastModified() == lastModified;
+    }
+
+    public String getForge()
+    {
+        return forge;
+    }
+
+    public void setForge(String forge)
+    {
+        this.forge = forge;
+    }
+
+    /**
+     * Identifies the contents of a build, regardless of where it was put. (The modification times are left out.)
+     */
+    public String getId()
+    {
+        StringBuilder sb = new StringBuilder("forge ").append(forge).append('\n');
+        for (Map.Entry<String, ModState> e : new TreeMap<>(mods).entrySet())
+        {
+            ModState mod = e.getValue();
+            sb.append("mod ").append(e.getKey()).append(' ').append(mod.path).append(' ').append(mod.size).append(' ').append(mod.sha1).append('\n');
+        }
+        for (Map.Entry<String, OverrideState> e : new TreeMap<>(overrides).entrySet())
+        {
+            OverrideState override = e.getValue();
+            sb.append("override ").append(e.getKey()).append(' ').append(override.size).append(' ').append(override.crc).append('\n');
+        }
+        try
+        {
+            return Helper.toHex(MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Record the size and modification time of every file as it is now, taken from the first folder that has it.
+     * For a state that was made for a zip, once it's been unpacked.
+     */
+    public void refresh(File... folders)
+    {
+        for (ModState mod : mods.values())
+        {
+            File file = find(mod.path, folders);
+            mod.size = file.length();
+            mod.lastModified = file.lastModified();
+        }
+        for (Map.Entry<String, OverrideState> e : overrides.entrySet())
+        {
+            File file = find(e.getKey(), folders);
+            e.getValue().size = file.length();
+            e.getValue().lastModified = file.lastModified();
+        }
+    }
+
+    private static File find(String path, File... folders)
+    {
+        for (File folder : folders)
+        {
+            File file = new File(folder, path);
+            if (file.exists()) return file;
+        }
+        return new File(folders[folders.length - 1], path);
+    }
+
+    /**
+     * If the same file of the mod is still in the folder, untouched, fill in the curseFile as if it was just downloaded.
+     *
+     * @return the path of the mod in the folder, null if it has to be downloaded.
+     */
+    public String keepMod(CurseFile curseFile, File folder)
+    {
+        ModState mod = mods.get(getKey(curseFile));
+        if (mod == null) return null;
+        File file = new File(folder, mod.path);
+        if (!isUntouched(file, mod.size, mod.lastModified)) return null;
+        curseFile.file = file;
+        curseFile.fileName = file.getName();
+        curseFile.size = mod.size;
+        curseFile.sha1 = mod.sha1;
+        return mod.path;
+    }
+
+    /**
+     * If the same file of the mod is still in the zip, fill in the curseFile as if it was just downloaded.
+     * The file is left null, copy the entry over instead.
+     *
+     * @return the path of the mod in the zip (without prefix), null if it has to be downloaded.
+     */
+    public String keepMod(CurseFile curseFile, ZipReader zip, String prefix)
+    {
+        ModState mod = mods.get(getKey(curseFile));
+        if (mod == null) return null;
+        ZipReader.Entry entry = zip.getEntry(prefix + mod.path);
+        if (entry == null || entry.getSize() != mod.size) return null;
+        curseFile.file = null;
+        curseFile.fileName = mod.path.substring(mod.path.lastIndexOf('/') + 1);
+        curseFile.size = mod.size;
+        curseFile.sha1 = mod.sha1;
+        return mod.path;
+    }
+
+    /**
+     * @param lastModified of the file as it ended up in the folder, 0 in a zip.
+     */
+    public void putMod(CurseFile curseFile, String path, long size, long lastModified)
+    {
+        ModState mod = new ModState();
+        mod.path = path;
+        mod.size = size;
+        mod.lastModified = lastModified;
+        mod.sha1 = curseFile.sha1;
+        mods.put(getKey(curseFile), mod);
+    }
+
+    /**
+     * @return true if the override is the same in the pack as last time.
+     */
+    public boolean isOverrideUnchanged(String path, long crc, long size)
+    {
+        OverrideState override = overrides.get(path);
+        return override != null && override.crc == crc && override.size == size;
+    }
+
+    /**
+     * @return true if the override is the same in the pack as last time, and the file in the folder is untouched.
+     */
+    public boolean isOverrideUnchanged(String path, long crc, long size, File folder)
+    {
+        OverrideState override = overrides.get(path);
+        return override != null && override.crc == crc && override.size == size && isUntouched(new File(folder, path), override.size, override.lastModified);
+    }
+
+    /**
+     * @param lastModified of the file as it ended up in the folder, 0 in a zip.
+     */
+    public void putOverride(String path, long crc, long size, long lastModified)
+    {
+        OverrideState override = new OverrideState();
+        override.crc = crc;
+        override.size = size;
+        override.lastModified = lastModified;
+        overrides.put(path, override);
+    }
+
+    /**
+     * @return the paths of all mods and overrides.
+     */
+    public Set<String> getPaths()
+    {
+        Set<String> paths = new HashSet<>(overrides.keySet());
+        for (ModState mod : mods.values())
+        {
+            paths.add(mod.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Everything that was put in the folder by this build, but isn't anymore by the next.
+     * Overrides that have been changed since are left alone, that's someone else's file now.
+     *
+     * @param folder null to not check for changes.
+     * @return paths of the files to remove.
+     */
+    public List<String> getRemoved(BuildState next, File folder)
+    {
+        Set<String> kept = next.getPaths();
+        List<String> removed = new ArrayList<>();
+        for (ModState mod : mods.values())
+        {
+            if (!kept.contains(mod.path)) removed.add(mod.path);
+        }
+        for (Map.Entry<String, OverrideState> e : overrides.entrySet())
+        {
+            OverrideState override = e.getValue();
+            if (kept.contains(e.getKey())) continue;
+            if (folder == null || isUntouched(new File(folder, e.getKey()), override.size, override.lastModified)) removed.add(e.getKey());
+        }
+        return removed;
+    }
+
+    private static class ModState
+    {
+        private String path;
+        private long size;
+        private long lastModified;
+        private String sha1;
+    }
+
+    private static class OverrideState
+    {
+        private long crc;
+        private long size;
+        private long lastModified;
+    }
+}
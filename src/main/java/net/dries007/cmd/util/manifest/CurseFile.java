@@ -32,6 +32,11 @@ public class CurseFile
     public String fileName;
     public File file;
     public String url;
+    public long size = -1;
+    public String sha1;
+    public String md5;
+    public long fingerprint = -1;
+    public String verified;
 
     @Override
     public String toString()
@@ -44,6 +49,11 @@ public class CurseFile
                 ", fileName='" + fileName + '\'' +
                 ", file=" + file +
                 ", url='" + url + '\'' +
+                ", size=" + size +
+                ", sha1='" + sha1 + '\'' +
+                ", md5='" + md5 + '\'' +
+                ", fingerprint=" + fingerprint +
+                ", verified='" + verified + '\'' +
                 '}';
     }
 }
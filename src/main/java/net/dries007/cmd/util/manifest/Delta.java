@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.manifest;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import net.dries007.cmd.util.zip.ZipReader;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The part of a delta zip that isn't just files: which build it applies to, and what to remove.
+ * Sits next to the build state, in the pack's folder in the zip.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class Delta
+{
+    public static final String FILE_NAME = "." + Helper.NAME + "-delta.json";
+
+    /**
+     * The id of the build state this delta was made against. See BuildState.getId.
+     */
+    public String base;
+    public List<String> removed = new ArrayList<>();
+
+    public Delta(String base, List<String> removed)
+    {
+        this.base = base;
+        this.removed = removed;
+    }
+
+    /**
+     * @return the folder of the pack in the zip (empty or ending in '/'), null if this isn't a delta zip.
+     */
+    public static String findPrefix(ZipReader zip)
+    {
+        for (ZipReader.Entry entry : zip.getEntries())
+        {
+            String name = entry.getName();
+            if (name.equals(FILE_NAME) || name.endsWith("/" + FILE_NAME)) return name.substring(0, name.length() - FILE_NAME.length());
+        }
+        return null;
+    }
+
+    public static Delta read(ZipReader zip, String prefix) throws IOException
+    {
+        InputStream in = zip.open(zip.getEntry(prefix + FILE_NAME));
+        try
+        {
+            Delta delta = Helper.GSON.fromJson(IOUtils.toString(in, "UTF-8"), Delta.class);
+            if (delta == null || delta.base == null || delta.removed == null) throw new IOException("Invalid " + prefix + FILE_NAME);
+            return delta;
+        }
+        catch (JsonParseException e)
+        {
+            throw new IOException("Invalid " + prefix + FILE_NAME, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public void write(File folder) throws IOException
+    {
+        FileUtils.writeStringToFile(new File(folder, FILE_NAME), Helper.GSON.toJson(this));
+    }
+}
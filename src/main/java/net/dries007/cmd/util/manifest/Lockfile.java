@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.manifest;
+
+import com.google.gson.JsonParseException;
+import net.dries007.cmd.Helper;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Everything resolving a mod found out (final URL, file name, size and hash), so the next build can skip resolving
+ * and check it gets exactly the same files.
+ *
+ * Keyed by 'projectID:fileID', like the mod cache.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class Lockfile
+{
+    private Map<String, Entry> mods = new TreeMap<>(); // Sorted, so it diffs nicely
+
+    public static Lockfile read(File file) throws IOException
+    {
+        try
+        {
+            Lockfile lockfile = Helper.GSON.fromJson(FileUtils.readFileToString(file), Lockfile.class);
+            if (lockfile == null || lockfile.mods == null) throw new IOException("Empty lockfile " + file);
+            return lockfile;
+        }
+        catch (JsonParseException e)
+        {
+            throw new IOException("Invalid lockfile " + file, e);
+        }
+    }
+
+    private static String getKey(CurseFile curseFile)
+    {
+        return curseFile.projectID + ":" + curseFile.fileID;
+    }
+
+    /**
+     * Fill in the url, fileName, projectName and size from the lock.
+     *
+     * @return false if the file is not in the lock.
+     */
+    public synchronized boolean apply(CurseFile curseFile)
+    {
+        Entry entry = mods.get(getKey(curseFile));
+        if (entry == null) return false;
+        curseFile.url = entry.url;
+        curseFile.fileName = entry.fileName;
+        curseFile.projectName = entry.projectName;
+        curseFile.size = entry.size;
+        return true;
+    }
+
+    /**
+     * @return the locked SHA-1, or null if the file is not in the lock.
+     */
+    public synchronized String getSha1(CurseFile curseFile)
+    {
+        Entry entry = mods.get(getKey(curseFile));
+        return entry == null ? null : entry.sha1;
+    }
+
+    /**
+     * Lock a successfully downloaded file. Its sha1 must be known.
+     */
+    public synchronized void put(CurseFile curseFile)
+    {
+        if (curseFile.sha1 == null) throw new IllegalArgumentException("Can't lock a file without hash: " + curseFile);
+        Entry entry = new Entry();
+        entry.url = curseFile.url;
+        entry.fileName = curseFile.fileName;
+        entry.projectName = curseFile.projectName;
+        entry.size = curseFile.size;
+        entry.sha1 = curseFile.sha1;
+        mods.put(getKey(curseFile), entry);
+    }
+
+    public synchronized int size()
+    {
+        return mods.size();
+    }
+
+    public void write(File file) throws IOException
+    {
+        String json;
+        synchronized (this)
+        {
+            json = Helper.GSON.toJson(this);
+        }
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        FileUtils.writeStringToFile(tmp, json);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static class Entry
+    {
+        private String url;
+        private String fileName;
+        private String projectName;
+        private long size;
+        private String sha1;
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.zip;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.*;
+
+/**
+ * Reads a zip from its central directory, so every entry can be read independently, and in parallel.
+ * All reads are positional reads on one shared source, there is no lock.
+ * The zip doesn't have to be a local file, see Source.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class ZipReader implements Closeable
+{
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final Charset CP437 = Charset.isSupported("IBM437") ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+
+    private final String file;
+    private final Source source;
+    private final List<Entry> entries;
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    private volatile boolean cancelled;
+    private final AtomicInteger extracted = new AtomicInteger();
+    private final AtomicLong extractedBytes = new AtomicLong();
+    private int toExtract;
+    private long toExtractBytes;
+
+    public ZipReader(File file) throws IOException
+    {
+        this(file.toString(), of(FileChannel.open(file.toPath(), StandardOpenOption.READ)));
+    }
+
+    /**
+     * @param name Only used in error messages.
+     */
+    public ZipReader(String name, Source source) throws IOException
+    {
+        this.file = name;
+        this.source = source;
+        try
+        {
+            this.entries = Collections.unmodifiableList(readCentralDirectory());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            source.close();
+            throw e;
+        }
+        for (Entry entry : entries)
+        {
+            byName.put(entry.name, entry);
+        }
+    }
+
+    private static Source of(final FileChannel channel)
+    {
+        return new Source()
+        {
+            @Override
+            public long size() throws IOException
+            {
+                return channel.size();
+            }
+
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException
+            {
+                return channel.read(dst, position);
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                channel.close();
+            }
+        };
+    }
+
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * @return null if there is no such entry.
+     */
+    public Entry getEntry(String name)
+    {
+        return byName.get(name);
+    }
+
+    private List<Entry> readCentralDirectory() throws IOException
+    {
+        long size = source.size();
+        int tail = (int) Math.min(size, EOCD_SIZE + MAX_COMMENT);
+        ByteBuffer buffer = read(size - tail, tail);
+        int eocd = -1;
+        for (int i = tail - EOCD_SIZE; i >= 0; i--)
+        {
+            if (buffer.getInt(i) == 0x06054b50)
+            {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) throw new ZipException("Not a zip file (no end of central directory): " + file);
+
+        long count = buffer.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = buffer.getInt(eocd + 12) & ZIP64_LIMIT;
+        long cdOffset = buffer.getInt(eocd + 16) & ZIP64_LIMIT;
+        long eocdPosition = size - tail + eocd;
+        if ((count == 0xFFFF || cdSize == ZIP64_LIMIT || cdOffset == ZIP64_LIMIT) && eocdPosition >= 20)
+        {
+            ByteBuffer locator = read(eocdPosition - 20, 20);
+            if (locator.getInt(0) == 0x07064b50)
+            {
+                ByteBuffer record = read(locator.getLong(8), 56);
+                if (record.getInt(0) != 0x06064b50) throw new ZipException("Invalid zip64 end of central directory: " + file);
+                count = record.getLong(32);
+                cdSize = record.getLong(40);
+                cdOffset = record.getLong(48);
+            }
+        }
+        if (cdSize > Integer.MAX_VALUE || cdOffset + cdSize > size) throw new ZipException("Invalid central directory: " + file);
+
+        ByteBuffer cd = read(cdOffset, (int) cdSize);
+        List<Entry> list = new ArrayList<>((int) Math.min(count, 100000));
+        int p = 0;
+        while (p + 46 <= cd.limit() && cd.getInt(p) == 0x02014b50)
+        {
+            Entry entry = new Entry();
+            int flags = cd.getShort(p + 8) & 0xFFFF;
+            entry.method = cd.getShort(p + 10) & 0xFFFF;
+            entry.dosTime = cd.getInt(p + 12);
+            entry.crc = cd.getInt(p + 16) & ZIP64_LIMIT;
+            entry.csize = cd.getInt(p + 20) & ZIP64_LIMIT;
+            entry.size = cd.getInt(p + 24) & ZIP64_LIMIT;
+            int nameLength = cd.getShort(p + 28) & 0xFFFF;
+            int extraLength = cd.getShort(p + 30) & 0xFFFF;
+            int commentLength = cd.getShort(p + 32) & 0xFFFF;
+            entry.offset = cd.getInt(p + 42) & ZIP64_LIMIT;
+            entry.encrypted = (flags & 1) != 0;
+
+            byte[] name = new byte[nameLength];
+            cd.position(p + 46);
+            cd.get(name);
+            entry.name = new String(name, (flags & (1 << 11)) != 0 ? StandardCharsets.UTF_8 : CP437).replace('\\', '/');
+
+            // Zip64 extra field, only contains the values that didn't fit.
+            int e = p + 46 + nameLength;
+            int end = e + extraLength;
+            while (e + 4 <= end)
+            {
+                int id = cd.getShort(e) & 0xFFFF;
+                int length = cd.getShort(e + 2) & 0xFFFF;
+                if (id == 0x0001)
+                {
+                    int v = e + 4;
+                    if (entry.size == ZIP64_LIMIT && v + 8 <= e + 4 + length)
+                    {
+                        entry.size = cd.getLong(v);
+                        v += 8;
+                    }
+                    if (entry.csize == ZIP64_LIMIT && v + 8 <= e + 4 + length)
+                    {
+                        entry.csize = cd.getLong(v);
+                        v += 8;
+                    }
+                    if (entry.offset == ZIP64_LIMIT && v + 8 <= e + 4 + length)
+                    {
+                        entry.offset = cd.getLong(v);
+                    }
+                }
+                e += 4 + length;
+            }
+            list.add(entry);
+            p = end + commentLength;
+        }
+        if (list.size() != count) throw new ZipException("Central directory has " + list.size() + " entries, expected " + count + ": " + file);
+        return list;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining())
+        {
+            if (source.read(buffer, position + buffer.position()) == -1) throw new EOFException("Unexpected end of zip file: " + file);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Where the entry's data starts, after the local header. (Which can have a different extra field than the central directory.)
+     */
+    private long getDataOffset(Entry entry) throws IOException
+    {
+        if (entry.dataOffset == -1)
+        {
+            ByteBuffer header = read(entry.offset, 30);
+            if (header.getInt(0) != 0x04034b50) throw new ZipException("Invalid local header for " + entry.name + " in " + file);
+            entry.dataOffset = entry.offset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        }
+        return entry.dataOffset;
+    }
+
+    /**
+     * Thread safe, every stream is independent. The CRC is not checked, use extract for that.
+     */
+    public InputStream open(Entry entry) throws IOException
+    {
+        if (entry.encrypted) throw new ZipException("Encrypted entries are not supported: " + entry.name);
+        // One extra dummy byte for the inflater, like ZipFile does.
+        InputStream in = new RegionInputStream(getDataOffset(entry), entry.csize, entry.method == ZipEntry.DEFLATED);
+        switch (entry.method)
+        {
+            case ZipEntry.STORED:
+                return in;
+            case ZipEntry.DEFLATED:
+                return new InflaterInputStream(in, new Inflater(true), 64 * 1024)
+                {
+                    @Override
+                    public void close() throws IOException
+                    {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+    }
+
+    /**
+     * The entry's data as it is stored in the zip, still compressed.
+     */
+    InputStream openRaw(Entry entry) throws IOException
+    {
+        return new RegionInputStream(getDataOffset(entry), entry.csize, false);
+    }
+
+    /**
+     * Extract a single entry (file) to target, and check its CRC.
+     */
+    public void extract(Entry entry, File target) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        long written = 0;
+        if (entry.method == ZipEntry.STORED && !entry.encrypted)
+        {
+            // No need for streams, straight into the file channel through one direct buffer.
+            long position = getDataOffset(entry);
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(256 * 1024, Math.max(1, entry.size)));
+            FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try
+            {
+                while (written < entry.size)
+                {
+                    checkCancelled();
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), entry.size - written));
+                    int n = source.read(buffer, position + written);
+                    if (n == -1) throw new EOFException("Unexpected end of zip file: " + file);
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    while (buffer.hasRemaining())
+                    {
+                        out.write(buffer);
+                    }
+                    written += n;
+                    extractedBytes.addAndGet(n);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        else
+        {
+            InputStream in = open(entry);
+            OutputStream out = new FileOutputStream(target);
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1)
+                {
+                    checkCancelled();
+                    crc.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    written += n;
+                    extractedBytes.addAndGet(n);
+                }
+            }
+            finally
+            {
+                IOUtils.closeQuietly(in);
+                out.close();
+            }
+        }
+        if (written != entry.size || crc.getValue() != entry.crc)
+        {
+            throw new ZipException("Corrupt entry " + entry.name + " in " + file + " (size or CRC mismatch)");
+        }
+        //noinspection ResultOfMethodCallIgnored
+        target.setLastModified(entry.getTime());
+    }
+
+    /**
+     * Extract everything in parallel. All folders are created up front.
+     * Largest files go first, so one big file doesn't end up being the only thing left at the end.
+     *
+     * @param mapper Maps entry name to path relative to the folder, null to skip the entry. If null, all entries are extracted as-is.
+     */
+    public void extractAll(File folder, Function<String, String> mapper, int threads) throws IOException
+    {
+        Path root = folder.toPath().toAbsolutePath().normalize();
+        Map<Entry, File> files = new LinkedHashMap<>();
+        Set<File> folders = new HashSet<>();
+        for (Entry entry : entries)
+        {
+            String name = mapper == null ? entry.name : mapper.apply(entry.name);
+            if (name == null) continue;
+            Path path = root.resolve(name).normalize();
+            if (!path.startsWith(root)) throw new ZipException("Entry " + entry.name + " would be extracted outside of " + folder);
+            if (entry.isDirectory())
+            {
+                folders.add(path.toFile());
+            }
+            else
+            {
+                files.put(entry, path.toFile());
+                if (path.getParent() != null) folders.add(path.getParent().toFile());
+            }
+        }
+        for (File f : folders)
+        {
+            //noinspection ResultOfMethodCallIgnored
+            f.mkdirs();
+            if (!f.isDirectory()) throw new IOException("Could not create folder " + f);
+        }
+
+        List<Map.Entry<Entry, File>> todo = new ArrayList<>(files.entrySet());
+        Collections.sort(todo, (a, b) -> Long.compare(b.getKey().size, a.getKey().size));
+        toExtract = todo.size();
+        for (Map.Entry<Entry, File> e : todo) toExtractBytes += e.getKey().size;
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, todo.size())), r -> {
+            Thread thread = new Thread(r, "Unzipper-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>(todo.size());
+            for (final Map.Entry<Entry, File> e : todo)
+            {
+                futures.add(executor.submit(() -> {
+                    extract(e.getKey(), e.getValue());
+                    extracted.incrementAndGet();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures)
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (InterruptedException e)
+                {
+                    cancel();
+                    throw new InterruptedIOException("Interrupted while extracting " + file);
+                }
+                catch (ExecutionException e)
+                {
+                    // No point in doing the rest.
+                    cancel();
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        finally
+        {
+            // No interrupts, that would close the shared source. The tasks stop on their own once cancelled.
+            executor.shutdown();
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException
+    {
+        if (cancelled) throw new InterruptedIOException("Extracting " + file + " was cancelled");
+    }
+
+    /**
+     * Stop extracting, extractAll throws.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public String getProgress()
+    {
+        return String.format("%d of %d files, %.1f of %.1f MB", extracted.get(), toExtract, extractedBytes.get() / 1048576.0, toExtractBytes / 1048576.0);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        source.close();
+    }
+
+    /**
+     * Random access to the bytes of a zip. Must allow concurrent positional reads.
+     */
+    public interface Source extends Closeable
+    {
+        long size() throws IOException;
+
+        /**
+         * Like FileChannel's positional read.
+         */
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+
+    public static class Entry
+    {
+        private String name;
+        private int method;
+        private int dosTime;
+        private long crc;
+        private long csize;
+        private long size;
+        private long offset;
+        private long dataOffset = -1;
+        private boolean encrypted;
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getSize()
+        {
+            return size;
+        }
+
+        public boolean isDirectory()
+        {
+            return name.endsWith("/");
+        }
+
+        boolean isEncrypted()
+        {
+            return encrypted;
+        }
+
+        int getMethod()
+        {
+            return method;
+        }
+
+        int getDosTime()
+        {
+            return dosTime;
+        }
+
+        public long getCrc()
+        {
+            return crc;
+        }
+
+        long getCompressedSize()
+        {
+            return csize;
+        }
+
+        public long getTime()
+        {
+            Calendar c = Calendar.getInstance();
+            c.clear();
+            c.set(((dosTime >> 25) & 0x7F) + 1980, ((dosTime >> 21) & 0x0F) - 1, (dosTime >> 16) & 0x1F, (dosTime >> 11) & 0x1F, (dosTime >> 5) & 0x3F, (dosTime << 1) & 0x3E);
+            return c.getTimeInMillis();
+        }
+
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /**
+     * A part of the zip file, read with positional reads so streams don't interfere with each other.
+     */
+    private class RegionInputStream extends InputStream
+    {
+        private long position;
+        private final long end;
+        private boolean dummy;
+
+        private RegionInputStream(long position, long length, boolean dummy)
+        {
+            this.position = position;
+            this.end = position + length;
+            this.dummy = dummy;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) return 0;
+            if (position >= end)
+            {
+                if (!dummy) return -1;
+                dummy = false;
+                b[off] = 0;
+                return 1;
+            }
+            int n = source.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n == -1) throw new EOFException("Unexpected end of zip file: " + file);
+            position += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,721 @@
+/*
+ * Copyright 2017 Dries007
+ *
+ * Licensed under the EUPL, Version 1.1 only (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl5
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package net.dries007.cmd.util.zip;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip while the files it contains are still being made.
+ *
+ * Entries are compressed in parallel on all cores, and written on a single thread in whatever order they are ready.
+ * Large entries are split into blocks that are deflated in parallel, each primed with the end of the previous block,
+ * so the result is one normal deflate stream. (Like pigz does.)
+ * Files with an extension from the store list (already compressed: jars, zips, pngs, ...) are stored, not deflated again.
+ *
+ * The zip is written to a '.part' file next to the target, and only renamed to the target on close.
+ * Zip64 records are only used when required.
+ *
+ * When reproducible, the same files always make the same zip, byte for byte: all entries get the same fixed time,
+ * and nothing is written until finish, when everything is compressed and written sorted by name.
+ * (Compression still runs ahead in parallel, but only a limited number of entries, so they don't all end up in memory.)
+ * There are never any Unix permissions in the zip, so those don't differ either.
+ *
+ * @author Dries007
+ */
+@SuppressWarnings("WeakerAccess")
+public class ZipWriter
+{
+    public static final List<String> DEFAULT_STORED_EXTENSIONS = Arrays.asList("jar", "zip", "png", "jpg", "jpeg", "ogg", "gz", "xz", "7z");
+
+    private static final int SMALL = 1024 * 1024; // Bigger than this is split up into blocks
+    private static final int BLOCK = 128 * 1024;
+    private static final int DICTIONARY = 32 * 1024; // Deflate window size
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int FLAG_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final int FIXED_DOS_TIME = (1 << 21) | (1 << 16); // 1980-01-01 00:00, the earliest possible
+
+    private final File target;
+    private final File part;
+    private final int level;
+    private final Set<String> storedExtensions;
+    private final boolean reproducible;
+    private final Map<String, Supplier<CompletableFuture<Entry>>> pending = new TreeMap<>(); // Only when reproducible, sorted by name
+    private final Output out;
+    private final ExecutorService compressor;
+    private final ExecutorService writer;
+    private final Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Only touched by the writer thread
+    private final List<Entry> central = new ArrayList<>();
+    private IOException failed;
+    private int stored;
+    private int deflated;
+    private int split;
+    private int raw;
+    private long bytesIn;
+    private boolean finished;
+
+    /**
+     * @param level            Deflate level, 0 - 9. 0 stores everything.
+     * @param storedExtensions Lowercase extensions of files that are stored, not deflated.
+     */
+    public ZipWriter(File target, int level, Collection<String> storedExtensions) throws IOException
+    {
+        this(target, level, storedExtensions, false);
+    }
+
+    /**
+     * @param reproducible Sorted entries and fixed times, see class description. The returned futures are done right away, errors only show up on finish.
+     */
+    public ZipWriter(File target, int level, Collection<String> storedExtensions, boolean reproducible) throws IOException
+    {
+        this.target = target;
+        this.reproducible = reproducible;
+        this.part = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".part");
+        this.level = level;
+        this.storedExtensions = new HashSet<>(storedExtensions);
+        this.out = new Output(new BufferedOutputStream(new FileOutputStream(part), 256 * 1024));
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.compressor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread(r, "Zip-Compressor-" + threadCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Zip-Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a file or (empty) folder to be added. Names are unique, only the first file added under a name is written.
+     *
+     * @param name Path inside the zip, with '/' as separator.
+     */
+    public CompletableFuture<Void> add(final String name, final File file)
+    {
+        final boolean directory = file.isDirectory();
+        final String entryName = directory && !name.endsWith("/") ? name + "/" : name;
+        if (!names.add(entryName)) return CompletableFuture.completedFuture(null);
+        return queue(entryName, () -> {
+            if (directory)
+            {
+                Entry entry = new Entry(entryName, getDosTime(file.lastModified()));
+                entry.data = new byte[0];
+                return CompletableFuture.completedFuture(entry);
+            }
+            return CompletableFuture.supplyAsync(() -> {
+                try
+                {
+                    return prepare(entryName, file);
+                }
+                catch (IOException e)
+                {
+                    throw new CompletionException(e);
+                }
+            }, compressor);
+        });
+    }
+
+    /**
+     * Copy an entry from another zip as-is, without decompressing and compressing it again.
+     * The reader must stay open until this is done.
+     */
+    public CompletableFuture<Void> addRaw(String name, ZipReader reader, ZipReader.Entry source)
+    {
+        if (source.isDirectory() && !name.endsWith("/")) name += "/";
+        if (!names.add(name)) return CompletableFuture.completedFuture(null);
+        final Entry entry = new Entry(name, reproducible ? FIXED_DOS_TIME : source.getDosTime());
+        entry.method = source.getMethod();
+        entry.crc = source.getCrc();
+        entry.size = source.getSize();
+        entry.csize = source.getCompressedSize();
+        entry.reader = reader;
+        entry.source = source;
+        return queue(name, () -> {
+            CompletableFuture<Entry> prepared = new CompletableFuture<>();
+            if (source.isEncrypted()) prepared.completeExceptionally(new ZipException("Encrypted entries are not supported: " + source.getName()));
+            else prepared.complete(entry);
+            return prepared;
+        });
+    }
+
+    /**
+     * Write the entry as soon as it's prepared, or when reproducible, keep it for later.
+     */
+    private CompletableFuture<Void> queue(String name, Supplier<CompletableFuture<Entry>> prepare)
+    {
+        if (reproducible)
+        {
+            synchronized (pending)
+            {
+                pending.put(name, prepare);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        return prepare.get().thenAcceptAsync(this::writeUnchecked, writer);
+    }
+
+    private void writeUnchecked(Entry entry)
+    {
+        try
+        {
+            write(entry);
+        }
+        catch (IOException e)
+        {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Prepare the pending entries in order, a limited number ahead of the one being written.
+     */
+    private void writePending() throws IOException
+    {
+        List<Supplier<CompletableFuture<Entry>>> todo;
+        synchronized (pending)
+        {
+            todo = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+        int ahead = Runtime.getRuntime().availableProcessors() * 2;
+        List<CompletableFuture<Void>> written = new ArrayList<>(todo.size());
+        CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+        for (Supplier<CompletableFuture<Entry>> prepare : todo)
+        {
+            if (written.size() >= ahead) get(written.get(written.size() - ahead));
+            previous = previous.thenCombineAsync(prepare.get(), (v, entry) -> {
+                writeUnchecked(entry);
+                return null;
+            }, writer);
+            written.add(previous);
+        }
+        get(previous);
+    }
+
+    /**
+     * Add all files (and folders) in folder that haven't been added yet.
+     */
+    public CompletableFuture<Void> addAll(String prefix, File folder)
+    {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        File[] files = folder.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+            {
+                String name = prefix + file.getName();
+                futures.add(add(name, file));
+                if (file.isDirectory()) futures.add(addAll(name + "/", file));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Runs on the compressor pool. Small files are done here, large files only get their blocks queued.
+     */
+    private Entry prepare(String name, final File file) throws IOException
+    {
+        Entry entry = new Entry(name, getDosTime(file.lastModified()));
+        final long length = file.length();
+        boolean store = level == 0 || storedExtensions.contains(FilenameUtils.getExtension(name).toLowerCase());
+        if (length <= SMALL)
+        {
+            byte[] raw = Files.readAllBytes(file.toPath());
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            entry.crc = crc.getValue();
+            entry.size = raw.length;
+            if (!store)
+            {
+                byte[] compressed = deflate(null, raw, raw.length, true);
+                if (compressed.length < raw.length)
+                {
+                    entry.method = ZipEntry.DEFLATED;
+                    entry.data = compressed;
+                }
+            }
+            if (entry.data == null) entry.data = raw;
+            entry.csize = entry.data.length;
+        }
+        else if (store)
+        {
+            entry.file = file;
+            entry.size = length;
+            entry.csize = length;
+            entry.crc = crc(file);
+        }
+        else
+        {
+            entry.method = ZipEntry.DEFLATED;
+            entry.file = file;
+            entry.size = length;
+            entry.descriptor = true;
+            int count = (int) ((length + BLOCK - 1) / BLOCK);
+            entry.blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                final long position = (long) i * BLOCK;
+                final boolean last = i == count - 1;
+                entry.blocks.add(compressor.submit(() -> deflateBlock(file, position, (int) Math.min(BLOCK, length - position), last)));
+            }
+            entry.crcFuture = compressor.submit(() -> crc(file));
+        }
+        return entry;
+    }
+
+    private byte[] deflateBlock(File file, long position, int length, boolean last) throws IOException
+    {
+        int dictionary = (int) Math.min(DICTIONARY, position);
+        ByteBuffer buffer = ByteBuffer.allocate(dictionary + length);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, position - dictionary + buffer.position()) == -1) throw new EOFException("File shrunk while zipping: " + file);
+            }
+        }
+        finally
+        {
+            channel.close();
+        }
+        byte[] data = buffer.array();
+        byte[] dict = dictionary == 0 ? null : Arrays.copyOf(data, dictionary);
+        return deflate(dict, Arrays.copyOfRange(data, dictionary, data.length), length, last);
+    }
+
+    /**
+     * Raw deflate. If not last, the output ends on a byte boundary (sync flush) so the next block can be appended to it.
+     */
+    private byte[] deflate(byte[] dictionary, byte[] data, int length, boolean last)
+    {
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            if (dictionary != null) deflater.setDictionary(dictionary);
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if (last)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    baos.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }
+            else
+            {
+                int n;
+                do
+                {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    baos.write(buffer, 0, n);
+                }
+                while (n == buffer.length);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static long crc(File file) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1)
+            {
+                crc.update(buffer, 0, n);
+            }
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Runs on the writer thread. Once something went wrong, the zip is broken, so everything else fails too.
+     */
+    private void write(Entry entry) throws IOException
+    {
+        if (failed != null) throw failed;
+        try
+        {
+            entry.offset = out.position;
+            // Deflated size is unknown up front for split entries, make sure it can't overflow.
+            entry.zip64 = entry.size >= ZIP64_LIMIT || (entry.descriptor && entry.size + entry.size / 64 + 1024 >= ZIP64_LIMIT);
+            writeLocalHeader(entry);
+            if (entry.data != null)
+            {
+                out.write(entry.data);
+            }
+            else if (entry.source != null)
+            {
+                InputStream in = entry.reader.openRaw(entry.source);
+                try
+                {
+                    if (IOUtils.copyLarge(in, out) != entry.csize) throw new IOException("Could not copy " + entry.source.getName());
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(in);
+                }
+                raw++;
+            }
+            else if (entry.blocks == null)
+            {
+                InputStream in = new FileInputStream(entry.file);
+                try
+                {
+                    if (IOUtils.copyLarge(in, out) != entry.size) throw new IOException("File changed while zipping: " + entry.file);
+                }
+                finally
+                {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+            else
+            {
+                long start = out.position;
+                for (Future<byte[]> block : entry.blocks)
+                {
+                    out.write(get(block));
+                }
+                entry.csize = out.position - start;
+                entry.crc = get(entry.crcFuture);
+                writeDescriptor(entry);
+                split++;
+            }
+        }
+        catch (IOException e)
+        {
+            failed = e;
+            throw e;
+        }
+        if (entry.source == null)
+        {
+            if (entry.method == ZipEntry.DEFLATED) deflated++;
+            else if (!entry.name.endsWith("/")) stored++;
+        }
+        bytesIn += entry.size;
+        // Only the metadata is needed for the central directory.
+        entry.data = null;
+        entry.blocks = null;
+        entry.crcFuture = null;
+        entry.reader = null;
+        entry.source = null;
+        central.add(entry);
+    }
+
+    private static <T> T get(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while zipping");
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException
+    {
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(0x04034b50);
+        out.writeShort(entry.zip64 ? 45 : 20);
+        out.writeShort(FLAG_UTF8 | (entry.descriptor ? FLAG_DESCRIPTOR : 0));
+        out.writeShort(entry.method);
+        out.writeInt(entry.dosTime);
+        out.writeInt(entry.descriptor ? 0 : entry.crc);
+        out.writeInt(entry.zip64 ? ZIP64_LIMIT : (entry.descriptor ? 0 : entry.csize));
+        out.writeInt(entry.zip64 ? ZIP64_LIMIT : (entry.descriptor ? 0 : entry.size));
+        out.writeShort(name.length);
+        out.writeShort(entry.zip64 ? 20 : 0);
+        out.write(name);
+        if (entry.zip64)
+        {
+            out.writeShort(0x0001);
+            out.writeShort(16);
+            out.writeLong(entry.descriptor ? 0 : entry.size);
+            out.writeLong(entry.descriptor ? 0 : entry.csize);
+        }
+    }
+
+    private void writeDescriptor(Entry entry) throws IOException
+    {
+        out.writeInt(0x08074b50);
+        out.writeInt(entry.crc);
+        if (entry.zip64)
+        {
+            out.writeLong(entry.csize);
+            out.writeLong(entry.size);
+        }
+        else
+        {
+            out.writeInt(entry.csize);
+            out.writeInt(entry.size);
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException
+    {
+        long start = out.position;
+        for (Entry entry : central)
+        {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            boolean bigSize = entry.size >= ZIP64_LIMIT || entry.csize >= ZIP64_LIMIT;
+            boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+            int extra = (bigSize ? 16 : 0) + (bigOffset ? 8 : 0);
+            out.writeInt(0x02014b50);
+            out.writeShort(entry.zip64 || extra != 0 ? 45 : 20); // Made by
+            out.writeShort(entry.zip64 || extra != 0 ? 45 : 20); // Needed
+            out.writeShort(FLAG_UTF8 | (entry.descriptor ? FLAG_DESCRIPTOR : 0));
+            out.writeShort(entry.method);
+            out.writeInt(entry.dosTime);
+            out.writeInt(entry.crc);
+            out.writeInt(bigSize ? ZIP64_LIMIT : entry.csize);
+            out.writeInt(bigSize ? ZIP64_LIMIT : entry.size);
+            out.writeShort(name.length);
+            out.writeShort(extra == 0 ? 0 : extra + 4);
+            out.writeShort(0); // Comment
+            out.writeShort(0); // Disk
+            out.writeShort(0); // Internal attributes
+            out.writeInt(entry.name.endsWith("/") ? 0x10 : 0); // External attributes (MS-DOS directory)
+            out.writeInt(bigOffset ? ZIP64_LIMIT : entry.offset);
+            out.write(name);
+            if (extra != 0)
+            {
+                out.writeShort(0x0001);
+                out.writeShort(extra);
+                if (bigSize)
+                {
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.csize);
+                }
+                if (bigOffset) out.writeLong(entry.offset);
+            }
+        }
+        long size = out.position - start;
+        int count = central.size();
+        boolean zip64 = count >= 0xFFFF || size >= ZIP64_LIMIT || start >= ZIP64_LIMIT;
+        if (zip64)
+        {
+            long record = out.position;
+            out.writeInt(0x06064b50);
+            out.writeLong(44);
+            out.writeShort(45);
+            out.writeShort(45);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeLong(count);
+            out.writeLong(count);
+            out.writeLong(size);
+            out.writeLong(start);
+            // Locator
+            out.writeInt(0x07064b50);
+            out.writeInt(0);
+            out.writeLong(record);
+            out.writeInt(1);
+        }
+        out.writeInt(0x06054b50);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(zip64 ? 0xFFFF : count);
+        out.writeShort(zip64 ? 0xFFFF : count);
+        out.writeInt(zip64 ? ZIP64_LIMIT : size);
+        out.writeInt(zip64 ? ZIP64_LIMIT : start);
+        out.writeShort(0); // Comment
+    }
+
+    /**
+     * Wait for all queued entries and finish the zip, but don't move it into place yet.
+     * Readers of zips that were copied from can be closed after this. Only required if the target is one of those.
+     */
+    public void finish() throws IOException
+    {
+        if (finished) return;
+        if (reproducible) writePending();
+        get(writer.submit(() -> {
+            if (failed != null) throw failed;
+            writeCentralDirectory();
+            out.close();
+            return null;
+        }));
+        finished = true;
+    }
+
+    /**
+     * Finish the zip if that wasn't done yet, and move it into place.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            writer.shutdown();
+            compressor.shutdown();
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Stop writing and delete the unfinished zip.
+     */
+    public void discard()
+    {
+        compressor.shutdownNow();
+        writer.shutdownNow();
+        IOUtils.closeQuietly(out);
+        //noinspection ResultOfMethodCallIgnored
+        part.delete();
+    }
+
+    /**
+     * Only valid after close.
+     */
+    public String getStats()
+    {
+        return String.format("%d entries (%d stored, %d deflated, %d of which in parallel blocks, %d copied as-is), %.1f MB in, %.1f MB out",
+                central.size(), stored, deflated, split, raw, bytesIn / 1048576.0, out.position / 1048576.0);
+    }
+
+    private static class Entry
+    {
+        private final String name;
+        private final int dosTime;
+        private int method = ZipEntry.STORED;
+        private long crc;
+        private long size;
+        private long csize;
+        private long offset;
+        private boolean descriptor;
+        private boolean zip64;
+
+        // Where the data comes from: in memory, the whole file, the file in deflated blocks, or another zip.
+        private byte[] data;
+        private File file;
+        private List<Future<byte[]>> blocks;
+        private Future<Long> crcFuture;
+        private ZipReader reader;
+        private ZipReader.Entry source;
+
+        private Entry(String name, int dosTime)
+        {
+            this.name = name;
+            this.dosTime = dosTime;
+        }
+    }
+
+    private int getDosTime(long time)
+    {
+        return reproducible ? FIXED_DOS_TIME : toDosTime(time);
+    }
+
+    private static int toDosTime(long time)
+    {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) return FIXED_DOS_TIME;
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Little endian, and keeps track of the position.
+     */
+    private static class Output extends FilterOutputStream
+    {
+        private long position;
+
+        private Output(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            position += len;
+        }
+
+        private void writeShort(int v) throws IOException
+        {
+            write(v & 0xFF);
+            write((v >>> 8) & 0xFF);
+        }
+
+        private void writeInt(long v) throws IOException
+        {
+            writeShort((int) (v & 0xFFFF));
+            writeShort((int) ((v >>> 16) & 0xFFFF));
+        }
+
+        private void writeLong(long v) throws IOException
+        {
+            writeInt(v & 0xFFFFFFFFL);
+            writeInt(v >>> 32);
+        }
+    }
+}